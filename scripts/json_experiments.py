@@ -1,5 +1,6 @@
 import datetime as dt
 import fnmatch
+import gzip
 import json
 import os
 from math import ceil
@@ -16,14 +17,66 @@ START_TIME = dt.datetime(2016, 1, 13, 0, 0, 0)
 END_TIME = dt.datetime(2016, 1, 14, 0, 0, 0)
 
 
+def histogram_values(h):
+  # Middle of every bucket of a Histogram, repeated by its count
+  sub_bucket_bits = h['subBucketBits']
+  sub_bucket_count = 1 << sub_bucket_bits
+  half = sub_bucket_count / 2
+  values = []
+  for i, count in enumerate(h['counts']):
+    if count == 0: continue
+    if i < sub_bucket_count:
+      lowest, width = i, 1
+    else:
+      shift = (i - sub_bucket_count) / half + 1
+      lowest, width = ((i - sub_bucket_count) % half + half) << shift, 1 << shift
+    value = min(h['max'], max(h['min'], (lowest + (width - 1) / 2.0) * h['unit']))
+    values.append((value, count))
+  return np.repeat([v for v, _ in values], [c for _, c in values]).tolist()
+
+
+def series_means(j, name):
+  # Means of the finest buckets that cover the whole run
+  rollups = [r for r in j['series'][name] if r['start'] == 0]
+  return min(rollups, key=lambda r: r['bucketLength'])['mean']
+
+
 def cleanup(j):
+  # Runs with time series keep bucket rollups instead of one count per tick
+  if 'series' in j:
+    j['amountOfIdleTaxis'] = series_means(j, 'idleTaxis')
+    j['amountOfWaitingCustomers'] = series_means(j, 'waitingCustomers')
+  # Runs with histograms (-h) keep the distributions instead of the values
+  histograms = {'pickupWaitingTimes': 'pickupWaitingTimeHistogram', 'numberOfRequests': 'numberOfRequestsHistogram',
+                'travelTimeOverhead': 'travelTimeOverheadHistogram'}
+  for k, h in histograms.items():
+    if len(j[k]) == 0 and j.get(h):
+      j[k] = histogram_values(j[h])
   j['pickupWaitingTimes'] = map(lambda x: 1.0 * x / 60000, j['pickupWaitingTimes'])
 
 
+def is_stats_file(filename):
+  # Single runs write stats_<timestamp>, sweeps sweep_<id>_<run> and halving searches halving_<id>_<round>_<config>
+  return any(fnmatch.fnmatch(filename, prefix + '_*.json') or fnmatch.fnmatch(filename, prefix + '_*.json.gz')
+             for prefix in ('stats', 'sweep', 'halving'))
+
+
+def experiment_name(filename):
+  # The figures of a single run are named by its timestamp, those of sweep and halving runs by their whole file name
+  name = filename.split('.')[0]
+  return name.split('_')[1] if name.startswith('stats_') else name
+
+
+def open_stats(filename):
+  # Statistics saved with -z are gzipped
+  path = os.path.join(stats_path, filename)
+  return gzip.open(path, 'rb') if filename.endswith('.gz') else open(path, 'r')
+
+
 def analyze_experiment(filename):
-  with open(os.path.join(stats_path, filename), 'r') as f:
+  with open_stats(filename) as f:
     j = json.load(f)
-    timestamp = filename.split('_')[1].split('.')[0]
+    timestamp = experiment_name(filename)
     print timestamp
     print j['args']
     # print j
@@ -129,15 +182,15 @@ def combined_boxplots(jsons, title, k):
 
 def main():
   for f in os.listdir(stats_path):
-    if fnmatch.fnmatch(f, 'stats_*.json'):
+    if is_stats_file(f):
       analyze_experiment(f)
 
 
 def create_combined_boxplots():
   jsons = []
   for f in os.listdir(stats_path):
-    if fnmatch.fnmatch(f, 'stats_*.json'):
-      with open(os.path.join(stats_path, f), 'r') as fl:
+    if is_stats_file(f):
+      with open_stats(f) as fl:
         j = json.load(fl)
         cleanup(j)
         jsons.append(j)
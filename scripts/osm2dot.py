@@ -1,4 +1,5 @@
 import argparse
+import os
 import re
 
 import networkx as nx
@@ -42,6 +43,8 @@ def main(osmFile, dotFile):
   print 'Number of edges: {}'.format(len(g.edges()))
   print 'Number of nodes: {}'.format(len(g.nodes()))
   node_coords_to_pos(g)
+  if os.path.dirname(dotFile) and not os.path.isdir(os.path.dirname(dotFile)):
+    os.makedirs(os.path.dirname(dotFile))
   write_dot(g, dotFile)
   # Remove trailing semicolons from dotFile
   with open(dotFile, "r") as sources:
@@ -0,0 +1,319 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.core.model.comm.MessageContents;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+import core.messages.*;
+import core.statistics.StatsTracker;
+import core.statistics.TimeSeries;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The complete state of a simulation at the end of a tick, stored in a gzipped binary file.
+ * It holds the clock, the random generator that samples the trips, the time series, the taxis, the customers,
+ * the messages that are still unread and the statistics. The trips are read by time, so the clock also marks how far the trips were read.
+ * <p>
+ * A simulation is resumed by building it as usual, with the agents of the checkpoint instead of new taxis.
+ * The agents wait while the clock runs up to the tick that ended at the checkpoint. In that tick the customers in taxis are picked up again,
+ * the unread messages are sent again and the statistics are restored, after which the simulation continues as if it had never stopped.
+ * Settings that do not change the state, such as trading or the field, may differ from those of the original run.
+ */
+final class Checkpoint {
+    private static final int MAGIC = 0x4d415343;
+    private static final int VERSION = 7;
+    private static final int TAXI = 0;
+    private static final int CUSTOMER = 1;
+    private static final int BROADCAST = 2;
+
+    final long time;
+    final long tickLength;
+    final double sample;
+    final Random random;
+    private final DataInputStream in;
+    private final List<Taxi> taxis;
+    private final Map<Long, Customer> customers;
+    private final Map<Customer, Taxi> cargo;
+
+    private Checkpoint(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a checkpoint of this version");
+        }
+        this.time = in.readLong();
+        this.tickLength = in.readLong();
+        this.sample = in.readDouble();
+        byte[] randomState = new byte[in.readInt()];
+        in.readFully(randomState);
+        try (ObjectInputStream randomIn = new ObjectInputStream(new ByteArrayInputStream(randomState))) {
+            this.random = (Random) randomIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        this.in = in;
+        this.taxis = new ArrayList<>();
+        this.customers = new HashMap<>();
+        this.cargo = new LinkedHashMap<>();
+    }
+
+    /**
+     * Read the header of a checkpoint file. The agents are read by {@link #restoreAgents}.
+     */
+    static Checkpoint load(File file) throws IOException {
+        return new Checkpoint(new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)))));
+    }
+
+    /**
+     * Check whether a run with the given settings can resume from this checkpoint.
+     * The tick length fixes the times of the ticks and the sample fixes the number of taxis and the trips that are drawn.
+     */
+    void verify(SimulationSettings settings) throws IOException {
+        if (settings.tickLength != tickLength || settings.sample != sample) {
+            throw new IOException("Checkpoint was written with tick length " + tickLength + " ms and sample " + sample);
+        }
+        if (settings.roadGraphFile != null) {
+            throw new IOException("Checkpoints are only supported without a road graph");
+        }
+    }
+
+    /**
+     * Write a checkpoint of a simulation at the end of the tick that ends at the given time.
+     * The file is written next to its final location first, so a crash never leaves a partial checkpoint behind.
+     */
+    static void write(File file, long time, SimulationSettings settings, Random random, TimeSeries series,
+                      List<Taxi> taxis, Collection<Customer> customers, MessageRecorder recorder, StatsTracker statsTracker) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(time);
+            out.writeLong(settings.tickLength);
+            out.writeDouble(settings.sample);
+            ByteArrayOutputStream randomState = new ByteArrayOutputStream();
+            try (ObjectOutputStream randomOut = new ObjectOutputStream(randomState)) {
+                randomOut.writeObject(random);
+            }
+            out.writeInt(randomState.size());
+            randomState.writeTo(out);
+
+            series.writeState(out);
+
+            out.writeInt(taxis.size());
+            Map<Customer, Taxi> cargo = new HashMap<>();
+            for (Taxi taxi : taxis) {
+                writePoint(out, taxi.getPosition().get());
+                taxi.getPickedUpCustomers().forEach(c -> cargo.put(c, taxi));
+            }
+            out.writeInt(customers.size());
+            for (Customer customer : customers) {
+                Taxi carrier = cargo.get(customer);
+                out.writeInt(carrier == null ? -1 : carrier.getId());
+                customer.writeState(out);
+            }
+            for (Taxi taxi : taxis) {
+                taxi.writeState(out);
+            }
+
+            // Messages between taxis and customers that were delivered in this tick are ignored, so they are left out
+            Set<Customer> liveCustomers = new HashSet<>(customers);
+            List<Integer> messages = new ArrayList<>();
+            for (int i = 0; i < recorder.size(); i++) {
+                if (isLive(recorder.getSender(i), liveCustomers) && isLive(recorder.getRecipient(i), liveCustomers)) {
+                    messages.add(i);
+                }
+            }
+            out.writeInt(messages.size());
+            for (int i : messages) {
+                writeAgent(out, recorder.getSender(i));
+                writeAgent(out, recorder.getRecipient(i));
+                writeContents(out, recorder.getContents(i));
+            }
+
+            statsTracker.writeState(out, vehicle -> ((Taxi) vehicle).getId());
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Create the taxis and customers of the checkpoint, with the given factory for taxis with an id and a position,
+     * and restore the time series up to the checkpoint. The deadlines of the customers are scheduled on the given timer wheel.
+     * The taxis and customers are added to the given collections in the order in which they have to be registered.
+     */
+    void restoreAgents(BiFunction<Integer, Point, Taxi> taxiFactory, TimerWheel timers, @Nullable MessageRecorder recorder, TimeSeries series,
+                       List<Taxi> taxis, Map<Long, Customer> customers) throws IOException {
+        series.readState(in);
+
+        int taxiCount = in.readInt();
+        for (int i = 0; i < taxiCount; i++) {
+            this.taxis.add(taxiFactory.apply(i, readPoint(in)));
+        }
+        int customerCount = in.readInt();
+        for (int i = 0; i < customerCount; i++) {
+            int carrier = in.readInt();
+            Point cargoPosition = carrier < 0 ? null : this.taxis.get(carrier).getStartPosition();
+            Customer customer = Customer.readState(in, cargoPosition, timers, recorder);
+            this.customers.put(customer.getId(), customer);
+            customers.put(customer.getId(), customer);
+            if (carrier >= 0) {
+                cargo.put(customer, this.taxis.get(carrier));
+            }
+        }
+        for (Taxi taxi : this.taxis) {
+            taxi.readState(in, this.customers, time);
+        }
+        taxis.addAll(this.taxis);
+    }
+
+    /**
+     * Finish the restore in the tick that ended at the checkpoint, after the agents of {@link #restoreAgents} were registered:
+     * put the customers back in their taxis, send the unread messages again and restore the statistics.
+     */
+    void restoreTick(PDPModel pdpModel, TimeLapse timeLapse, StatsTracker statsTracker) throws IOException {
+        for (Map.Entry<Customer, Taxi> entry : cargo.entrySet()) {
+            pdpModel.pickup(entry.getValue(), entry.getKey(), timeLapse);
+        }
+
+        int messageCount = in.readInt();
+        for (int i = 0; i < messageCount; i++) {
+            CommUser sender = readAgent(in);
+            CommUser recipient = readAgent(in);
+            MessageContents contents = readContents(in);
+            if (sender instanceof Taxi) {
+                ((Taxi) sender).send(contents, recipient);
+            } else {
+                ((Customer) sender).send(contents, recipient);
+            }
+        }
+
+        statsTracker.readState(in, taxis::get);
+        in.close();
+    }
+
+    static void writePoint(DataOutput out, Point point) throws IOException {
+        out.writeDouble(point.x);
+        out.writeDouble(point.y);
+    }
+
+    static Point readPoint(DataInput in) throws IOException {
+        return new Point(in.readDouble(), in.readDouble());
+    }
+
+    static void writeCustomers(DataOutput out, List<Customer> customers) throws IOException {
+        out.writeInt(customers.size());
+        for (Customer customer : customers) {
+            out.writeLong(customer.getId());
+        }
+    }
+
+    static ArrayList<Customer> readCustomers(DataInput in, Map<Long, Customer> customers) throws IOException {
+        ArrayList<Customer> result = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            result.add(getCustomer(customers, in.readLong()));
+        }
+        return result;
+    }
+
+    private static Customer getCustomer(Map<Long, Customer> customers, long id) throws IOException {
+        Customer customer = customers.get(id);
+        if (customer == null) {
+            throw new IOException("Unknown customer " + id);
+        }
+        return customer;
+    }
+
+    private static boolean isLive(@Nullable CommUser agent, Set<Customer> liveCustomers) {
+        return !(agent instanceof Customer) || liveCustomers.contains(agent);
+    }
+
+    private static void writeAgent(DataOutput out, @Nullable CommUser agent) throws IOException {
+        if (agent instanceof Taxi) {
+            out.writeByte(TAXI);
+            out.writeInt(((Taxi) agent).getId());
+        } else if (agent instanceof Customer) {
+            out.writeByte(CUSTOMER);
+            out.writeLong(((Customer) agent).getId());
+        } else {
+            out.writeByte(BROADCAST);
+        }
+    }
+
+    @Nullable
+    private CommUser readAgent(DataInput in) throws IOException {
+        int type = in.readByte();
+        if (type == TAXI) {
+            return taxis.get(in.readInt());
+        } else if (type == CUSTOMER) {
+            return getCustomer(customers, in.readLong());
+        }
+        return null;
+    }
+
+    private static void writeContents(DataOutput out, MessageContents contents) throws IOException {
+        if (contents instanceof ContractAccept) {
+            out.writeByte(0);
+        } else if (contents instanceof ContractBid) {
+            out.writeByte(1);
+            out.writeInt(((ContractBid) contents).getTaxi().getId());
+            out.writeDouble(((ContractBid) contents).getBid());
+        } else if (contents instanceof ContractDeal) {
+            out.writeByte(2);
+            out.writeLong(((ContractDeal) contents).getCustomer().getId());
+            out.writeDouble(((ContractDeal) contents).getBid());
+        } else if (contents instanceof ContractRequest) {
+            out.writeByte(3);
+            out.writeLong(((ContractRequest) contents).getCustomer().getId());
+        } else if (contents instanceof TradeAccept) {
+            out.writeByte(4);
+            out.writeLong(((TradeAccept) contents).getCustomer().getId());
+        } else if (contents instanceof TradeDeal) {
+            out.writeByte(5);
+            out.writeDouble(((TradeDeal) contents).getProfit());
+            out.writeInt(((TradeDeal) contents).getTaxi().getId());
+            out.writeLong(((TradeDeal) contents).getCustomer().getId());
+        } else if (contents instanceof TradeRequest) {
+            out.writeByte(6);
+            out.writeInt(((TradeRequest) contents).getTaxi().getId());
+            out.writeLong(((TradeRequest) contents).getCustomer().getId());
+            out.writeDouble(((TradeRequest) contents).getRouteReduction());
+        } else {
+            throw new IOException("Unknown message " + contents.getClass().getSimpleName());
+        }
+    }
+
+    private MessageContents readContents(DataInput in) throws IOException {
+        switch (in.readByte()) {
+            case 0:
+                return new ContractAccept();
+            case 1:
+                return new ContractBid(taxis.get(in.readInt()), in.readDouble());
+            case 2:
+                return new ContractDeal(getCustomer(customers, in.readLong()), in.readDouble());
+            case 3:
+                return new ContractRequest(getCustomer(customers, in.readLong()));
+            case 4:
+                return new TradeAccept(getCustomer(customers, in.readLong()));
+            case 5:
+                return new TradeDeal(in.readDouble(), taxis.get(in.readInt()), getCustomer(customers, in.readLong()));
+            case 6:
+                return new TradeRequest(taxis.get(in.readInt()), getCustomer(customers, in.readLong()), in.readDouble());
+            default:
+                throw new IOException("Unknown message type");
+        }
+    }
+}
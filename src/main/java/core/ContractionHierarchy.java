@@ -0,0 +1,524 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Contraction hierarchy over a {@link RoadNetwork} for fast shortest path distance queries.
+ * Nodes are contracted one by one in order of importance, and shortcut edges are added where needed to preserve shortest paths.
+ * A query only has to search upwards in the hierarchy from both the source and the target.
+ * The hierarchy is stored in a file next to the road graph, so the preprocessing only runs once.
+ */
+final class ContractionHierarchy {
+    private static final int FILE_MAGIC = 0x43484e57;
+    private static final int FILE_VERSION = 1;
+    private static final int WITNESS_SETTLED_LIMIT = 500;
+
+    private final int nodeCount;
+    private final int[] forwardFirst;
+    private final int[] forwardTarget;
+    private final double[] forwardWeight;
+    private final int[] backwardFirst;
+    private final int[] backwardTarget;
+    private final double[] backwardWeight;
+    private final ThreadLocal<Search> searches;
+
+    private ContractionHierarchy(int nodeCount, int[] forwardFirst, int[] forwardTarget, double[] forwardWeight,
+                                 int[] backwardFirst, int[] backwardTarget, double[] backwardWeight) {
+        this.nodeCount = nodeCount;
+        this.forwardFirst = forwardFirst;
+        this.forwardTarget = forwardTarget;
+        this.forwardWeight = forwardWeight;
+        this.backwardFirst = backwardFirst;
+        this.backwardTarget = backwardTarget;
+        this.backwardWeight = backwardWeight;
+        this.searches = ThreadLocal.withInitial(() -> new Search(nodeCount));
+    }
+
+    /**
+     * Load the hierarchy for the given network from the given file.
+     * If the file does not exist or was built for another network, the hierarchy is built and saved to the file.
+     */
+    static ContractionHierarchy loadOrBuild(RoadNetwork network, File file) {
+        if (file.exists()) {
+            try {
+                ContractionHierarchy hierarchy = load(network, file);
+                if (hierarchy != null) {
+                    return hierarchy;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ContractionHierarchy hierarchy = build(network);
+        try {
+            hierarchy.save(network, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Contract all nodes of the given network.
+     */
+    static ContractionHierarchy build(RoadNetwork network) {
+        int n = network.getNodeCount();
+        List<Map<Integer, Double>> out = new ArrayList<>(n);
+        List<Map<Integer, Double>> in = new ArrayList<>(n);
+        for (int v = 0; v < n; v++) {
+            out.add(new HashMap<>());
+            in.add(new HashMap<>());
+        }
+        for (int v = 0; v < n; v++) {
+            for (int e = network.getFirstEdge(v); e < network.getFirstEdge(v + 1); e++) {
+                addEdge(out, in, v, network.getEdgeTarget(e), network.getEdgeLength(e));
+            }
+        }
+
+        int[][] upTargets = new int[n][];
+        double[][] upWeights = new double[n][];
+        int[][] downTargets = new int[n][];
+        double[][] downWeights = new double[n][];
+        int[] contractedNeighbours = new int[n];
+        WitnessSearch witness = new WitnessSearch(n);
+
+        PriorityQueue<double[]> queue = new PriorityQueue<>(Math.max(1, n), (a, b) -> Double.compare(a[0], b[0]));
+        for (int v = 0; v < n; v++) {
+            queue.add(new double[]{priority(v, out, in, contractedNeighbours, witness), v});
+        }
+        while (!queue.isEmpty()) {
+            int v = (int) queue.poll()[1];
+            // Priorities change as neighbours are contracted, so they are updated lazily
+            double priority = priority(v, out, in, contractedNeighbours, witness);
+            if (!queue.isEmpty() && priority > queue.peek()[0]) {
+                queue.add(new double[]{priority, v});
+                continue;
+            }
+
+            for (int[] shortcut : findShortcuts(v, out, in, witness)) {
+                addEdge(out, in, shortcut[0], shortcut[1], in.get(v).get(shortcut[0]) + out.get(v).get(shortcut[1]));
+            }
+
+            // All remaining neighbours are contracted later, so these edges lead upwards in the hierarchy
+            upTargets[v] = new int[out.get(v).size()];
+            upWeights[v] = new double[out.get(v).size()];
+            int i = 0;
+            for (Map.Entry<Integer, Double> edge : out.get(v).entrySet()) {
+                upTargets[v][i] = edge.getKey();
+                upWeights[v][i++] = edge.getValue();
+                in.get(edge.getKey()).remove(v);
+                contractedNeighbours[edge.getKey()]++;
+            }
+            downTargets[v] = new int[in.get(v).size()];
+            downWeights[v] = new double[in.get(v).size()];
+            i = 0;
+            for (Map.Entry<Integer, Double> edge : in.get(v).entrySet()) {
+                downTargets[v][i] = edge.getKey();
+                downWeights[v][i++] = edge.getValue();
+                out.get(edge.getKey()).remove(v);
+                contractedNeighbours[edge.getKey()]++;
+            }
+            out.get(v).clear();
+            in.get(v).clear();
+        }
+
+        int[] forwardFirst = offsets(upTargets);
+        int[] backwardFirst = offsets(downTargets);
+        return new ContractionHierarchy(n,
+                forwardFirst, flatten(upTargets, forwardFirst), flatten(upWeights, forwardFirst),
+                backwardFirst, flatten(downTargets, backwardFirst), flatten(downWeights, backwardFirst));
+    }
+
+    private static void addEdge(List<Map<Integer, Double>> out, List<Map<Integer, Double>> in, int from, int to, double weight) {
+        Double current = out.get(from).get(to);
+        if (current == null || weight < current) {
+            out.get(from).put(to, weight);
+            in.get(to).put(from, weight);
+        }
+    }
+
+    /**
+     * Edge difference of contracting the given node, plus the number of neighbours that were already contracted.
+     */
+    private static double priority(int v, List<Map<Integer, Double>> out, List<Map<Integer, Double>> in,
+                                   int[] contractedNeighbours, WitnessSearch witness) {
+        return findShortcuts(v, out, in, witness).size() - in.get(v).size() - out.get(v).size() + contractedNeighbours[v];
+    }
+
+    /**
+     * Find the (from, to) pairs that need a shortcut when the given node is contracted.
+     * A shortcut is needed when no path of at most the same length avoiding the node is found.
+     */
+    private static List<int[]> findShortcuts(int v, List<Map<Integer, Double>> out, List<Map<Integer, Double>> in,
+                                             WitnessSearch witness) {
+        List<int[]> shortcuts = new ArrayList<>();
+        double maxOut = 0;
+        for (double weight : out.get(v).values()) {
+            maxOut = Math.max(maxOut, weight);
+        }
+        for (Map.Entry<Integer, Double> incoming : in.get(v).entrySet()) {
+            int u = incoming.getKey();
+            witness.run(u, v, incoming.getValue() + maxOut, out);
+            for (Map.Entry<Integer, Double> outgoing : out.get(v).entrySet()) {
+                int w = outgoing.getKey();
+                if (w != u && witness.getDistance(w) > incoming.getValue() + outgoing.getValue()) {
+                    shortcuts.add(new int[]{u, w});
+                }
+            }
+            witness.reset();
+        }
+        return shortcuts;
+    }
+
+    private static int[] offsets(int[][] lists) {
+        int[] first = new int[lists.length + 1];
+        for (int v = 0; v < lists.length; v++) {
+            first[v + 1] = first[v] + lists[v].length;
+        }
+        return first;
+    }
+
+    private static int[] flatten(int[][] lists, int[] first) {
+        int[] result = new int[first[lists.length]];
+        for (int v = 0; v < lists.length; v++) {
+            System.arraycopy(lists[v], 0, result, first[v], lists[v].length);
+        }
+        return result;
+    }
+
+    private static double[] flatten(double[][] lists, int[] first) {
+        double[] result = new double[first[lists.length]];
+        for (int v = 0; v < lists.length; v++) {
+            System.arraycopy(lists[v], 0, result, first[v], lists[v].length);
+        }
+        return result;
+    }
+
+    private static ContractionHierarchy load(RoadNetwork network, File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION
+                    || input.readInt() != network.getNodeCount() || input.readLong() != network.getFingerprint()) {
+                return null;
+            }
+            int n = network.getNodeCount();
+            int[] forwardFirst = readInts(input, n + 1);
+            int[] forwardTarget = readInts(input, forwardFirst[n]);
+            double[] forwardWeight = readDoubles(input, forwardFirst[n]);
+            int[] backwardFirst = readInts(input, n + 1);
+            int[] backwardTarget = readInts(input, backwardFirst[n]);
+            double[] backwardWeight = readDoubles(input, backwardFirst[n]);
+            return new ContractionHierarchy(n, forwardFirst, forwardTarget, forwardWeight, backwardFirst, backwardTarget, backwardWeight);
+        }
+    }
+
+    private void save(RoadNetwork network, File file) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(nodeCount);
+            output.writeLong(network.getFingerprint());
+            writeInts(output, forwardFirst);
+            writeInts(output, forwardTarget);
+            writeDoubles(output, forwardWeight);
+            writeInts(output, backwardFirst);
+            writeInts(output, backwardTarget);
+            writeDoubles(output, backwardWeight);
+        }
+    }
+
+    private static int[] readInts(DataInputStream input, int length) throws IOException {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = input.readInt();
+        }
+        return values;
+    }
+
+    private static double[] readDoubles(DataInputStream input, int length) throws IOException {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = input.readDouble();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream output, int[] values) throws IOException {
+        for (int value : values) {
+            output.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream output, double[] values) throws IOException {
+        for (double value : values) {
+            output.writeDouble(value);
+        }
+    }
+
+    /**
+     * Shortest path distance between two nodes of the network.
+     */
+    double distance(int from, int to) {
+        if (from == to) {
+            return 0;
+        }
+        Search search = searches.get();
+        search.source[0] = from;
+        search.target[0] = to;
+        distances(search.source, 1, search.target, 1, search.result);
+        return search.result[0];
+    }
+
+    /**
+     * Shortest path distances between all given sources and targets, stored row by row in the result.
+     * Every target's upward search space is stored in buckets, which every source's upward search then scans.
+     */
+    void distances(int[] sources, int sourceCount, int[] targets, int targetCount, double[] result) {
+        Arrays.fill(result, 0, sourceCount * targetCount, Double.MAX_VALUE);
+        Search search = searches.get();
+        search.clearBuckets();
+        for (int j = 0; j < targetCount; j++) {
+            search.run(targets[j], backwardFirst, backwardTarget, backwardWeight);
+            for (int i = 0; i < search.settledCount; i++) {
+                search.addToBucket(search.settledNodes[i], j, search.settledDistances[i]);
+            }
+            search.reset();
+        }
+        for (int i = 0; i < sourceCount; i++) {
+            search.run(sources[i], forwardFirst, forwardTarget, forwardWeight);
+            for (int k = 0; k < search.settledCount; k++) {
+                int node = search.settledNodes[k];
+                for (int entry = search.bucketHead[node]; entry >= 0; entry = search.bucketNext[entry]) {
+                    int cell = i * targetCount + search.bucketTarget[entry];
+                    result[cell] = Math.min(result[cell], search.settledDistances[k] + search.bucketDistance[entry]);
+                }
+            }
+            search.reset();
+        }
+        search.clearBuckets();
+    }
+
+    /**
+     * Reusable state of an upward search, one per thread.
+     */
+    private static final class Search {
+        final int[] source = new int[1];
+        final int[] target = new int[1];
+        final double[] result = new double[1];
+        final double[] distance;
+        int[] settledNodes;
+        double[] settledDistances;
+        int settledCount;
+        int[] bucketHead;
+        int[] bucketNext;
+        int[] bucketTarget;
+        double[] bucketDistance;
+        int bucketCount;
+        int[] bucketNodes;
+        final Heap heap;
+
+        Search(int n) {
+            distance = new double[n];
+            Arrays.fill(distance, Double.MAX_VALUE);
+            settledNodes = new int[16];
+            settledDistances = new double[16];
+            bucketHead = new int[n];
+            Arrays.fill(bucketHead, -1);
+            bucketNext = new int[16];
+            bucketTarget = new int[16];
+            bucketDistance = new double[16];
+            bucketNodes = new int[16];
+            heap = new Heap();
+        }
+
+        /**
+         * Run a full Dijkstra search from the source over the given upward edges.
+         */
+        void run(int source, int[] first, int[] target, double[] weight) {
+            settledCount = 0;
+            distance[source] = 0;
+            heap.push(0, source);
+            while (!heap.isEmpty()) {
+                double d = heap.peekKey();
+                int v = heap.pop();
+                if (d > distance[v]) {
+                    continue;
+                }
+                if (settledCount == settledNodes.length) {
+                    settledNodes = Arrays.copyOf(settledNodes, settledCount * 2);
+                    settledDistances = Arrays.copyOf(settledDistances, settledCount * 2);
+                }
+                settledNodes[settledCount] = v;
+                settledDistances[settledCount++] = d;
+                for (int e = first[v]; e < first[v + 1]; e++) {
+                    int w = target[e];
+                    double candidate = d + weight[e];
+                    if (candidate < distance[w]) {
+                        distance[w] = candidate;
+                        heap.push(candidate, w);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reset the distances touched by the last search.
+         * Every touched node is settled because the searches are not pruned.
+         */
+        void reset() {
+            for (int i = 0; i < settledCount; i++) {
+                distance[settledNodes[i]] = Double.MAX_VALUE;
+            }
+            settledCount = 0;
+        }
+
+        void addToBucket(int node, int target, double d) {
+            if (bucketCount == bucketNext.length) {
+                bucketNext = Arrays.copyOf(bucketNext, bucketCount * 2);
+                bucketTarget = Arrays.copyOf(bucketTarget, bucketCount * 2);
+                bucketDistance = Arrays.copyOf(bucketDistance, bucketCount * 2);
+                bucketNodes = Arrays.copyOf(bucketNodes, bucketCount * 2);
+            }
+            bucketNext[bucketCount] = bucketHead[node];
+            bucketTarget[bucketCount] = target;
+            bucketDistance[bucketCount] = d;
+            bucketNodes[bucketCount] = node;
+            bucketHead[node] = bucketCount++;
+        }
+
+        void clearBuckets() {
+            for (int i = 0; i < bucketCount; i++) {
+                bucketHead[bucketNodes[i]] = -1;
+            }
+            bucketCount = 0;
+        }
+    }
+
+    /**
+     * Witness search used during contraction: a bounded Dijkstra search that avoids the node being contracted.
+     */
+    private static final class WitnessSearch {
+        private final double[] distance;
+        private final List<Integer> touched;
+        private final Heap heap;
+
+        WitnessSearch(int n) {
+            distance = new double[n];
+            Arrays.fill(distance, Double.MAX_VALUE);
+            touched = new ArrayList<>();
+            heap = new Heap();
+        }
+
+        void run(int source, int ignored, double limit, List<Map<Integer, Double>> out) {
+            distance[source] = 0;
+            touched.add(source);
+            heap.push(0, source);
+            int settled = 0;
+            while (!heap.isEmpty() && settled < WITNESS_SETTLED_LIMIT) {
+                double d = heap.peekKey();
+                int v = heap.pop();
+                if (d > distance[v]) {
+                    continue;
+                }
+                if (d > limit) {
+                    break;
+                }
+                settled++;
+                for (Map.Entry<Integer, Double> edge : out.get(v).entrySet()) {
+                    int w = edge.getKey();
+                    double candidate = d + edge.getValue();
+                    if (w != ignored && candidate < distance[w]) {
+                        if (distance[w] == Double.MAX_VALUE) {
+                            touched.add(w);
+                        }
+                        distance[w] = candidate;
+                        heap.push(candidate, w);
+                    }
+                }
+            }
+            heap.clear();
+        }
+
+        double getDistance(int node) {
+            return distance[node];
+        }
+
+        void reset() {
+            for (int node : touched) {
+                distance[node] = Double.MAX_VALUE;
+            }
+            touched.clear();
+        }
+    }
+
+    /**
+     * Binary min-heap of (key, node) pairs. Decrease-key is done by pushing duplicates, stale entries are skipped by the searches.
+     */
+    private static final class Heap {
+        private double[] keys = new double[16];
+        private int[] nodes = new int[16];
+        private int size = 0;
+
+        void push(double key, int node) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && keys[(i - 1) / 2] > key) {
+                keys[i] = keys[(i - 1) / 2];
+                nodes[i] = nodes[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            double key = keys[size];
+            int node = nodes[size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                nodes[i] = nodes[child];
+                i = child;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+            return top;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -4,11 +4,11 @@ import com.github.rinde.rinsim.core.model.comm.CommDevice;
 import com.github.rinde.rinsim.core.model.comm.CommDeviceBuilder;
 import com.github.rinde.rinsim.core.model.comm.CommUser;
 import com.github.rinde.rinsim.core.model.comm.Message;
+import com.github.rinde.rinsim.core.model.comm.MessageContents;
 import com.github.rinde.rinsim.core.model.pdp.PDPModel;
 import com.github.rinde.rinsim.core.model.pdp.Parcel;
 import com.github.rinde.rinsim.core.model.pdp.ParcelDTO;
 import com.github.rinde.rinsim.core.model.road.RoadModel;
-import com.github.rinde.rinsim.core.model.time.TickListener;
 import com.github.rinde.rinsim.core.model.time.TimeLapse;
 import com.github.rinde.rinsim.geom.Point;
 import com.github.rinde.rinsim.util.TimeWindow;
@@ -19,46 +19,121 @@ import core.messages.ContractBid;
 import core.messages.ContractDeal;
 import core.messages.ContractRequest;
 
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Comparator;
 
 /**
  * A customer with very permissive time windows.
  */
-public class Customer extends Parcel implements CommUser, TickListener {
+public class Customer extends Parcel implements CommUser, TimerWheel.Agent {
     // time in ms
     private static final long SERVICE_DURATION = 0;
-    private static final int MAX_TICKS_TO_WAIT_FOR_ACCEPT = 3;
-    private static final int MAX_TICKS_TO_WAIT_FOR_BID = 5;
+    private static final long ACCEPT_TIMEOUT = 3000;
+    private static final long BID_TIMEOUT = 5000;
+    // A request or deal is answered in the tick after it was delivered, and the answer is read in the tick after that
+    private static final int ROUND_TRIP_TICKS = 2;
 
     private long pickupTime;
 
     private long id;
     private Optional<CommDevice> commDevice;
     private CustomerState state = CustomerState.INIT;
-    private int ticksSinceSentRequest;
-    private int ticksSinceSentDeal;
+    private long requestSentTime;
+    private long dealSentTime;
     private int numberOfSentRequests;
+    private final Point tripPickupLocation;
+    private final TimerWheel timers;
+    private final long wakeUpOrder;
+    private final MessageRecorder recorder;
 
-    private Customer(long id, ParcelDTO dto) {
+    private Customer(long id, ParcelDTO dto, Point tripPickupLocation, TimerWheel timers, @Nullable MessageRecorder recorder) {
         super(dto);
         this.id = id;
-        this.ticksSinceSentRequest = 0;
-        this.ticksSinceSentDeal = 0;
+        this.requestSentTime = 0;
+        this.dealSentTime = 0;
         this.numberOfSentRequests = 0;
         this.pickupTime = 0;
+        this.tripPickupLocation = tripPickupLocation;
+        this.timers = timers;
+        this.wakeUpOrder = timers.nextOrder();
+        this.recorder = recorder;
     }
 
-    Customer(HistoricalData data, TimeLapse time) {
+    Customer(HistoricalData data, TimeLapse time, TimerWheel timers, @Nullable MessageRecorder recorder) {
+        this(data, time, data.getPickupPoint(), data.getDropoffPoint(), timers, recorder);
+    }
+
+    /**
+     * Create a customer for the given trip that is picked up and delivered at the given locations instead of the exact trip locations.
+     */
+    Customer(HistoricalData data, TimeLapse time, Point pickupLocation, Point deliveryLocation, TimerWheel timers, @Nullable MessageRecorder recorder) {
         this(data.getId(), Parcel.builder(
-                data.getPickupPoint(),
-                data.getDropoffPoint()
+                pickupLocation,
+                deliveryLocation
         )
                 .orderAnnounceTime(time.getStartTime())
                 // TODO: window bepalen
                 .pickupTimeWindow(TimeWindow.create(time.getStartTime(), time.getEndTime() + 1000000))
                 .neededCapacity(data.getPassengerCount() > MasProject.TAXI_CAPACITY ? MasProject.TAXI_CAPACITY : data.getPassengerCount())
                 .serviceDuration(SERVICE_DURATION)
-                .buildDTO());
+                .buildDTO(), pickupLocation, timers, recorder);
+    }
+
+    /**
+     * Create a customer from the state written by {@link #writeState(DataOutput)}.
+     * A customer that was in a taxi is created at the position of that taxi, so the taxi can pick it up again.
+     * The deadline the customer was waiting for is scheduled again on the given timer wheel.
+     */
+    static Customer readState(DataInput in, @Nullable Point cargoPosition, TimerWheel timers, @Nullable MessageRecorder recorder) throws IOException {
+        long id = in.readLong();
+        Point tripPickupLocation = Checkpoint.readPoint(in);
+        Point pickupLocation = Checkpoint.readPoint(in);
+        Point deliveryLocation = Checkpoint.readPoint(in);
+        double neededCapacity = in.readDouble();
+        long orderAnnounceTime = in.readLong();
+        TimeWindow pickupTimeWindow = TimeWindow.create(in.readLong(), in.readLong());
+        Customer customer = new Customer(id, Parcel.builder(
+                cargoPosition != null ? cargoPosition : pickupLocation,
+                deliveryLocation
+        )
+                .orderAnnounceTime(orderAnnounceTime)
+                .pickupTimeWindow(pickupTimeWindow)
+                .neededCapacity(neededCapacity)
+                .serviceDuration(SERVICE_DURATION)
+                .buildDTO(), tripPickupLocation, timers, recorder);
+        customer.state = CustomerState.values()[in.readInt()];
+        customer.requestSentTime = in.readLong();
+        customer.dealSentTime = in.readLong();
+        customer.numberOfSentRequests = in.readInt();
+        customer.pickupTime = in.readLong();
+        if (customer.state == CustomerState.SENT_REQUEST) {
+            timers.schedule(customer, customer.requestSentTime, BID_TIMEOUT, ROUND_TRIP_TICKS);
+        } else if (customer.state == CustomerState.SENT_DEAL) {
+            timers.schedule(customer, customer.dealSentTime, ACCEPT_TIMEOUT, ROUND_TRIP_TICKS);
+        }
+        return customer;
+    }
+
+    /**
+     * Write the state of this customer to a checkpoint.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeLong(id);
+        Checkpoint.writePoint(out, tripPickupLocation);
+        Checkpoint.writePoint(out, getPickupLocation());
+        Checkpoint.writePoint(out, getDeliveryLocation());
+        out.writeDouble(getNeededCapacity());
+        out.writeLong(getOrderAnnounceTime());
+        out.writeLong(getPickupTimeWindow().begin());
+        out.writeLong(getPickupTimeWindow().end());
+        out.writeInt(state.ordinal());
+        out.writeLong(requestSentTime);
+        out.writeLong(dealSentTime);
+        out.writeInt(numberOfSentRequests);
+        out.writeLong(pickupTime);
     }
 
     public int getNumberOfSentRequests() {
@@ -69,6 +144,13 @@ public class Customer extends Parcel implements CommUser, TickListener {
         return id;
     }
 
+    /**
+     * The pickup location of the trip. It differs from the pickup location of the parcel for a customer that was restored in a taxi.
+     */
+    public Point getTripPickupLocation() {
+        return tripPickupLocation;
+    }
+
     private CustomerState getState() {
         return state;
     }
@@ -79,16 +161,34 @@ public class Customer extends Parcel implements CommUser, TickListener {
 
     @Override
     public void initRoadPDP(RoadModel pRoadModel, PDPModel pPdpModel) {
-        sendRequest();
+        // A customer restored from a checkpoint has already sent its request
+        if (getState() == CustomerState.INIT) {
+            sendRequest(getOrderAnnounceTime());
+        }
     }
 
-    private void sendRequest() {
-        commDevice.get().broadcast(new ContractRequest(this));
+    private void sendRequest(long time) {
+        send(new ContractRequest(this), null);
         numberOfSentRequests++;
-        ticksSinceSentRequest = 0;
+        requestSentTime = time;
+        timers.schedule(this, time, BID_TIMEOUT, ROUND_TRIP_TICKS);
         setState(CustomerState.SENT_REQUEST);
     }
 
+    /**
+     * Send a message to the given recipient, or broadcast it if there is no recipient.
+     */
+    void send(MessageContents contents, @Nullable CommUser recipient) {
+        if (recipient == null) {
+            commDevice.get().broadcast(contents);
+        } else {
+            commDevice.get().send(contents, recipient);
+        }
+        if (recorder != null) {
+            recorder.record(this, recipient, contents);
+        }
+    }
+
     @Override
     public Optional<Point> getPosition() {
         if (getRoadModel().containsObject(this)) {
@@ -111,55 +211,63 @@ public class Customer extends Parcel implements CommUser, TickListener {
     }
 
     @Override
-    public void tick(TimeLapse timeLapse) {
+    public long getWakeUpOrder() {
+        return wakeUpOrder;
+    }
 
+    /**
+     * Called by the timer wheel when a message was sent to this customer or when the deadline it waits for is reached.
+     */
+    @Override
+    public void wakeUp(TimeLapse timeLapse) {
+        // Reading the messages empties the inbox, also of a taken customer, so late bids do not pile up until its pickup
         ImmutableList<Message> messages = commDevice.get().getUnreadMessages();
 
+        if (getState() == CustomerState.TAKEN) {
+            // A taken customer waits for its taxi and ignores late messages
+            return;
+        }
+
         if (getState() == CustomerState.SENT_REQUEST) {
-            ticksSinceSentRequest++;
-            handleSentRequest(messages);
+            handleSentRequest(messages, timeLapse);
         } else if (getState() == CustomerState.SENT_DEAL) {
-            ticksSinceSentDeal += 1;
-            handleSentDeal(messages);
+            handleSentDeal(messages, timeLapse);
         }
     }
 
-    private void handleSentRequest(ImmutableList<Message> messages) {
+    private void handleSentRequest(ImmutableList<Message> messages, TimeLapse timeLapse) {
         java.util.Optional<ContractBid> highestBid = messages.stream()
                 .filter(msg -> msg.getContents() instanceof ContractBid)
                 .map(msg -> (ContractBid) msg.getContents())
                 .min(Comparator.comparingDouble(ContractBid::getBid));
 
         if (!highestBid.isPresent()) {
-            if (ticksSinceSentRequest >= MAX_TICKS_TO_WAIT_FOR_BID) {
+            if (timers.hasPassed(requestSentTime, BID_TIMEOUT, ROUND_TRIP_TICKS, timeLapse.getStartTime())) {
                 // No bids arrived before the deadline so the customer sends a new request
-                sendRequest();
+                sendRequest(timeLapse.getStartTime());
             }
             return;
         }
 
         ContractDeal deal = new ContractDeal(this, highestBid.get().getBid());
-        commDevice.get().send(deal, highestBid.get().getTaxi());
-        ticksSinceSentDeal = 0;
+        send(deal, highestBid.get().getTaxi());
+        dealSentTime = timeLapse.getStartTime();
+        timers.schedule(this, dealSentTime, ACCEPT_TIMEOUT, ROUND_TRIP_TICKS);
         setState(CustomerState.SENT_DEAL);
     }
 
-    private void handleSentDeal(ImmutableList<Message> messages) {
+    private void handleSentDeal(ImmutableList<Message> messages, TimeLapse timeLapse) {
         java.util.Optional<ContractAccept> accept = messages.stream()
                 .filter(msg -> msg.getContents() instanceof ContractAccept)
                 .map(msg -> (ContractAccept) msg.getContents())
                 .findFirst();
         if (accept.isPresent()) {
             setState(CustomerState.TAKEN);
-        } else if (ticksSinceSentDeal >= MAX_TICKS_TO_WAIT_FOR_ACCEPT) {
-            sendRequest();
+        } else if (timers.hasPassed(dealSentTime, ACCEPT_TIMEOUT, ROUND_TRIP_TICKS, timeLapse.getStartTime())) {
+            sendRequest(timeLapse.getStartTime());
         }
     }
 
-    @Override
-    public void afterTick(TimeLapse timeLapse) {
-    }
-
     @Override
     public String toString() {
         return new StringBuilder()
@@ -1,21 +1,18 @@
 package core;
 
-import com.github.rinde.rinsim.core.model.comm.Message;
 import com.github.rinde.rinsim.geom.Point;
-import com.google.common.collect.ImmutableList;
-import core.messages.PositionBroadcast;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class DiscreteField {
     static double DEFAULT_TAXI_INFLUENCE_RANGE = 0.5;
     private static double CAPACITY_WEIGHT = 0.5;
     private double[][][] fieldData;
     private double[] maxFieldValues;
+    private FieldWindow window;
     private int tDim;
     private int xDim;
     private int yDim;
@@ -34,6 +31,19 @@ public class DiscreteField {
         this.taxiInfluenceRange = taxiInfluenceRange;
     }
 
+    /**
+     * A field of which the frames are kept in the given window instead of all in memory.
+     */
+    DiscreteField(FieldWindow window, int xDim, int yDim, Duration durationPerFrame, int matrixStep, double taxiInfluenceRange) {
+        this.window = window;
+        this.tDim = window.getFrameCount();
+        this.xDim = xDim;
+        this.yDim = yDim;
+        this.durationPerFrame = durationPerFrame;
+        this.matrixStep = matrixStep;
+        this.taxiInfluenceRange = taxiInfluenceRange;
+    }
+
     DiscreteField() {
         this.fieldData = new double[0][0][0];
         this.maxFieldValues = new double[0];
@@ -45,6 +55,16 @@ public class DiscreteField {
         this.taxiInfluenceRange = 0;
     }
 
+    /**
+     * A field with the same data and a different taxi influence range.
+     */
+    DiscreteField withTaxiInfluenceRange(double taxiInfluenceRange) {
+        if (window != null) {
+            return new DiscreteField(window, xDim, yDim, durationPerFrame, matrixStep, taxiInfluenceRange);
+        }
+        return new DiscreteField(fieldData, maxFieldValues, durationPerFrame, matrixStep, taxiInfluenceRange);
+    }
+
     private int getTDimension() {
         return this.tDim;
     }
@@ -62,11 +82,15 @@ public class DiscreteField {
     }
 
     double getValue(int t, int x, int y) {
-        return this.fieldData[t][x][y];
+        return getFrame(t)[x][y];
     }
 
     double getMaxValue(int t) {
-        return this.maxFieldValues[t];
+        return window != null ? window.getMaxValue(t) : this.maxFieldValues[t];
+    }
+
+    private double[][] getFrame(int t) {
+        return window != null ? window.getFrame(t) : this.fieldData[t];
     }
 
     private int[] convertMapToFieldCoordinates(Point p) {
@@ -82,6 +106,44 @@ public class DiscreteField {
         return new Point(x, y);
     }
 
+    /**
+     * Sum of the field values in the frames between the given times, per zone of a grid with the given size over the map.
+     * Every zone is a block of field cells, and the zones are numbered row by row.
+     */
+    double[] getZoneDemand(long from, long to, int columns, int rows) {
+        double[] demand = new double[columns * rows];
+        if (tDim == 0) {
+            return demand;
+        }
+        for (int t = getFrameIndexForTime(from); t <= getFrameIndexForTime(to); t++) {
+            double[][] frame = getFrame(t);
+            for (int x = 0; x < xDim; x++) {
+                for (int y = 0; y < yDim; y++) {
+                    demand[y * rows / yDim * columns + x * columns / xDim] += frame[x][y];
+                }
+            }
+        }
+        return demand;
+    }
+
+    /**
+     * The zone of a grid with the given size over the map that contains the given point, numbered as in {@link #getZoneDemand}.
+     */
+    int getZone(Point p, int columns, int rows) {
+        int[] cell = convertMapToFieldCoordinates(p);
+        return Math.max(0, cell[1]) * rows / yDim * columns + Math.max(0, cell[0]) * columns / xDim;
+    }
+
+    /**
+     * The middle of a zone of a grid with the given size over the map.
+     */
+    Point getZoneCentre(int zone, int columns, int rows) {
+        return new Point(
+                (zone % columns + 0.5) * Helper.ROADMODEL_BOUNDARIES_SCALE * Helper.getXScale() / columns,
+                (zone / columns + 0.5) * Helper.ROADMODEL_BOUNDARIES_SCALE * Helper.getYScale() / rows
+        );
+    }
+
     private List<int[]> getLeftCoords(int offset, int xPos, int yPos) {
         List<int[]> res = new ArrayList<>();
         int x = xPos - offset;
@@ -126,7 +188,11 @@ public class DiscreteField {
         return res;
     }
 
-    Vector2D getNextPosition(Taxi taxi, long time, ImmutableList<Message> messages, int range) {
+    /**
+     * Direction in which the given idle taxi should move: towards the demand of the field around it
+     * and away from the taxis with free capacity within the taxi influence range.
+     */
+    Vector2D getNextPosition(Taxi taxi, long time, FleetState fleet, int range) {
         int t = getFrameIndexForTime(time);
         int[] pos = convertMapToFieldCoordinates(taxi.getPosition().get());
         int xPos = pos[0];
@@ -134,16 +200,14 @@ public class DiscreteField {
         boolean nonZero = false;
         Point taxiPosition = taxi.getPosition().get();
 
+        double[][] frame = getFrame(t);
         Vector2D vector = new Vector2D(0, 0);
 
-        List<PositionBroadcast> positionBroadcasts = messages.stream()
-                .filter(m -> m.getContents() instanceof PositionBroadcast)
-                .map(m -> (PositionBroadcast) m.getContents())
-                .collect(Collectors.toList());
-
-        for (PositionBroadcast pb : positionBroadcasts) {
-            Vector2D diff = new Vector2D(pb.getPosition().x - taxiPosition.x, pb.getPosition().y - taxiPosition.y);
-            vector = vector.add(-1.0 * CAPACITY_WEIGHT * pb.getFreeCapacity() * (1 - Math.min(1, Point.distance(taxiPosition, pb.getPosition()) / taxiInfluenceRange)), diff);
+        // Taxis outside the influence range have no influence
+        for (int other : fleet.getNeighbours(taxi.getId(), taxiPosition, taxiInfluenceRange)) {
+            Point otherPosition = fleet.getPublishedPosition(other);
+            Vector2D diff = new Vector2D(otherPosition.x - taxiPosition.x, otherPosition.y - taxiPosition.y);
+            vector = vector.add(-1.0 * CAPACITY_WEIGHT * fleet.getPublishedFreeCapacity(other) * (1 - Math.min(1, Point.distance(taxiPosition, otherPosition) / taxiInfluenceRange)), diff);
         }
 
         for (int offset = 0; offset < matrixStep; offset++) {
@@ -154,7 +218,7 @@ public class DiscreteField {
             positions.addAll(getBottomCoords(offset, xPos, yPos));
 
             for (int[] p : positions) {
-                double fieldValue = getValue(t, p[0], p[1]);
+                double fieldValue = frame[p[0]][p[1]];
                 if (fieldValue > 10e-3) {
                     nonZero = true;
                     Point fieldPoint = convertFieldToMapCoordinates(p[0], p[1]);
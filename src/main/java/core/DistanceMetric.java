@@ -0,0 +1,22 @@
+package core;
+
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Distance between two points as used by the taxis for route planning.
+ */
+interface DistanceMetric {
+    /**
+     * Straight-line distance, which matches the plane road model.
+     */
+    DistanceMetric EUCLIDEAN = Point::distance;
+
+    double distance(Point from, Point to);
+
+    /**
+     * Announce that the distances between the first count given points are about to be requested,
+     * so they can be calculated in one batch.
+     */
+    default void prepare(Point[] points, int count) {
+    }
+}
@@ -14,13 +14,14 @@ class FieldGenerator {
     private int matrixStep;
     private int timeStep;
 
-    FieldGenerator(int matrixStep, int minPerFrame) {
+    private LocalDateTime stopTime;
+
+    FieldGenerator(int matrixStep, int minPerFrame, LocalDateTime stopTime) {
         this.matrixStep = matrixStep == 0 ? DEFAULT_MATRIX_STEP : matrixStep;
         this.xDim = (int) (this.matrixStep * Helper.getXScale());
         this.yDim = (int) (this.matrixStep * Helper.getYScale());
-        this.timeStep = (int) (Duration.between(Helper.START_TIME, Helper.STOP_TIME).getSeconds() / 60.0 / minPerFrame);
-        this.field = new double[this.timeStep][this.xDim][this.yDim];
-        this.maxFieldValues = new double[this.timeStep];
+        this.timeStep = (int) (Duration.between(Helper.START_TIME, stopTime).getSeconds() / 60.0 / minPerFrame);
+        this.stopTime = stopTime;
     }
 
     private int getMatrixStep() {
@@ -28,8 +29,10 @@ class FieldGenerator {
     }
 
     DiscreteField load(double taxiInfluenceRange) {
+        this.field = new double[this.timeStep][this.xDim][this.yDim];
+        this.maxFieldValues = new double[this.timeStep];
         MySQLDataLoader loader = new MySQLDataLoader();
-        Duration timeDuration = Duration.between(Helper.START_TIME, Helper.STOP_TIME).dividedBy(this.timeStep);
+        Duration timeDuration = Duration.between(Helper.START_TIME, stopTime).dividedBy(this.timeStep);
         LocalDateTime curTime = Helper.START_TIME.minus(Helper.FIELD_TIME_OFFSET);
         for (int i = 0; i < this.timeStep; i++) {
             this.field[i] = parseData(loader.read(curTime, curTime.plus(timeDuration)));
@@ -40,7 +43,23 @@ class FieldGenerator {
         return new DiscreteField(this.field, this.maxFieldValues, timeDuration, getMatrixStep(), taxiInfluenceRange);
     }
 
-    private double[][] parseData(List<HistoricalData> data) {
+    /**
+     * A field of which only the frames around the current time are kept, for runs that are too long to keep the whole field.
+     * The frames are loaded and smoothed as the simulation reaches them, with the same values as {@link #load(double)}.
+     *
+     * @param retainedFrames The number of frames before the latest requested frame that can still be requested.
+     */
+    DiscreteField loadWindow(double taxiInfluenceRange, int retainedFrames) {
+        Duration timeDuration = Duration.between(Helper.START_TIME, stopTime).dividedBy(this.timeStep);
+        FieldWindow window = new FieldWindow(this, new MySQLDataLoader(), Helper.START_TIME.minus(Helper.FIELD_TIME_OFFSET), timeDuration, timeStep, retainedFrames);
+        return new DiscreteField(window, xDim, yDim, timeDuration, getMatrixStep(), taxiInfluenceRange);
+    }
+
+    static double getFieldInfluence() {
+        return FIELD_INFLUENCE;
+    }
+
+    double[][] parseData(List<HistoricalData> data) {
         double[][] fieldFrame = new double[this.xDim][this.yDim];
         double max = 0;
         for (HistoricalData h : data) {
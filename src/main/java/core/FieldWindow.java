@@ -0,0 +1,143 @@
+package core;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * The frames of a field around the current simulation time, loaded and smoothed in time order as they are requested.
+ * Smoothing adds half of the previous smoothed frame and a part of the next three raw frames to a frame, like {@link FieldGenerator},
+ * so only a few raw frames ahead and the retained smoothed frames are in memory.
+ * Frames before the retained frames are no longer available and are replaced by the oldest retained frame.
+ */
+final class FieldWindow {
+    private static final int LOOKAHEAD = 3;
+
+    private final FieldGenerator generator;
+    private final MySQLDataLoader loader;
+    private final LocalDateTime start;
+    private final Duration frameDuration;
+    private final int frames;
+    private final int retainedFrames;
+    // The raw frames are only used while smoothing, which holds the lock
+    private final TreeMap<Integer, double[][]> raw;
+    private final Object lock;
+    private volatile Snapshot snapshot;
+
+    FieldWindow(FieldGenerator generator, MySQLDataLoader loader, LocalDateTime start, Duration frameDuration, int frames, int retainedFrames) {
+        this.generator = generator;
+        this.loader = loader;
+        this.start = start;
+        this.frameDuration = frameDuration;
+        this.frames = frames;
+        this.retainedFrames = retainedFrames;
+        this.raw = new TreeMap<>();
+        this.lock = new Object();
+        this.snapshot = new Snapshot(0, new double[0][][], new double[0]);
+    }
+
+    int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * The smoothed frame with the given index. Taxis ask for frames in the parallel decide phase, so the retained frames are
+     * published as an immutable snapshot that is read without locking; only smoothing a new frame takes the lock.
+     */
+    double[][] getFrame(int t) {
+        Snapshot current = advance(t);
+        return current.frames[current.getSlot(t)];
+    }
+
+    double getMaxValue(int t) {
+        Snapshot current = advance(t);
+        return current.maxValues[current.getSlot(t)];
+    }
+
+    /**
+     * A snapshot that contains the frame with the given index, smoothing the frames up to it if needed.
+     */
+    private Snapshot advance(int t) {
+        Snapshot current = snapshot;
+        if (t < current.getNext()) {
+            return current;
+        }
+        synchronized (lock) {
+            while (snapshot.getNext() <= t) {
+                snapshot = smoothNext(snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Smooth the frame after those of the given snapshot and return a new snapshot with it, without the frames that can no longer be requested.
+     */
+    private Snapshot smoothNext(Snapshot current) {
+        int t = current.getNext();
+        double influence = FieldGenerator.getFieldInfluence();
+        double[][] frame = getRaw(t);
+        double[][] previous = t == 0 ? frame : current.frames[current.frames.length - 1];
+        double[][] next1 = getRaw(Math.min(frames - 1, t + 1));
+        double[][] next2 = getRaw(Math.min(frames - 1, t + 2));
+        double[][] next3 = getRaw(Math.min(frames - 1, t + LOOKAHEAD));
+        double[][] result = new double[frame.length][];
+        double max = 0;
+        for (int x = 0; x < frame.length; x++) {
+            result[x] = new double[frame[x].length];
+            for (int y = 0; y < frame[x].length; y++) {
+                result[x][y] = frame[x][y] + influence * previous[x][y]
+                        + influence / 1 * next1[x][y]
+                        + influence / 2 * next2[x][y]
+                        + influence / 4 * next3[x][y];
+                max = Math.max(max, result[x][y]);
+            }
+        }
+        raw.headMap(t + 1).clear();
+
+        int first = Math.max(current.first, t - retainedFrames);
+        int dropped = first - current.first;
+        double[][][] retained = Arrays.copyOfRange(current.frames, dropped, current.frames.length + 1);
+        double[] maxValues = Arrays.copyOfRange(current.maxValues, dropped, current.maxValues.length + 1);
+        retained[retained.length - 1] = result;
+        maxValues[maxValues.length - 1] = max;
+        return new Snapshot(first, retained, maxValues);
+    }
+
+    private double[][] getRaw(int t) {
+        double[][] frame = raw.get(t);
+        if (frame == null) {
+            LocalDateTime from = start.plus(frameDuration.multipliedBy(t));
+            frame = generator.parseData(loader.read(from, from.plus(frameDuration)));
+            raw.put(t, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * The retained smoothed frames from a first index on, which are never changed once published.
+     */
+    private static final class Snapshot {
+        private final int first;
+        private final double[][][] frames;
+        private final double[] maxValues;
+
+        Snapshot(int first, double[][][] frames, double[] maxValues) {
+            this.first = first;
+            this.frames = frames;
+            this.maxValues = maxValues;
+        }
+
+        int getNext() {
+            return first + frames.length;
+        }
+
+        /**
+         * The slot of the frame to use for the given index, which is the oldest retained frame for an index before it.
+         */
+        int getSlot(int t) {
+            return Math.max(t, first) - first;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts of the taxis and waiting customers in a simulation, kept up to date on taxi state changes and PDP events
+ * so they can be read every tick without scanning all agents.
+ * Taxis can change state in the parallel decide phase, so the idle count is atomic.
+ */
+final class FleetCounters implements Listener {
+    private final AtomicInteger idleTaxis;
+    private int taxis;
+    private int waitingCustomers;
+
+    FleetCounters() {
+        this.idleTaxis = new AtomicInteger();
+        this.taxis = 0;
+        this.waitingCustomers = 0;
+    }
+
+    /**
+     * Register a state change of a taxi. A new taxi has no previous state.
+     */
+    void taxiStateChanged(Taxi.TaxiState from, Taxi.TaxiState to) {
+        if (from == Taxi.TaxiState.IDLE) {
+            idleTaxis.decrementAndGet();
+        }
+        if (to == Taxi.TaxiState.IDLE) {
+            idleTaxis.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        if (e.getEventType() == PDPModelEventType.NEW_VEHICLE) {
+            taxis++;
+        } else if (e.getEventType() == PDPModelEventType.NEW_PARCEL) {
+            waitingCustomers++;
+        } else if (e.getEventType() == PDPModelEventType.START_PICKUP) {
+            // The customer leaves the road model when the pickup starts
+            waitingCustomers--;
+        }
+    }
+
+    int getIdleTaxis() {
+        return idleTaxis.get();
+    }
+
+    int getWaitingCustomers() {
+        return waitingCustomers;
+    }
+
+    boolean allTaxisIdle() {
+        return idleTaxis.get() == taxis;
+    }
+}
@@ -0,0 +1,266 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The frequently used state of all taxis of a simulation, stored in primitive arrays indexed by taxi id,
+ * so passes over the whole fleet read memory linearly instead of following references from taxi to taxi.
+ * {@link Taxi} reads and writes its position, state, free capacity, field vector and idle distance here.
+ * <p>
+ * At the end of every tick the positions and free capacities are published, which takes the place of the position broadcasts
+ * the taxis used to send each other: during a tick every taxi sees the fleet as it was at the end of the previous tick.
+ * Published taxis with free capacity are indexed in a grid, so the taxis near a position can be found without a pass over the fleet.
+ */
+final class FleetState implements TickListener {
+    private static final int MAX_CELLS_PER_SIDE = 256;
+
+    private final FleetCounters counters;
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private int size;
+    private Taxi[] taxis;
+    private double[] x;
+    private double[] y;
+    private byte[] states;
+    private double[] freeCapacity;
+    private double[] fieldVectorX;
+    private double[] fieldVectorY;
+    private double[] idleDistance;
+    private double[] publishedX;
+    private double[] publishedY;
+    private double[] publishedFreeCapacity;
+    private int[] cellStart;
+    private int[] cellNext;
+    private int[] cellTaxis;
+
+    /**
+     * Create the state of a fleet on a map with the given bounds.
+     * The grid cells are about as large as the given neighbour range, within the limit of {@link #MAX_CELLS_PER_SIDE} cells per side.
+     */
+    FleetState(FleetCounters counters, List<Point> bounds, double neighbourRange) {
+        this.counters = counters;
+        this.minX = bounds.get(0).x;
+        this.minY = bounds.get(0).y;
+        double width = bounds.get(1).x - minX;
+        double height = bounds.get(1).y - minY;
+        this.cellSize = Math.max(neighbourRange, Math.max(width, height) / MAX_CELLS_PER_SIDE);
+        this.columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(height / cellSize));
+        this.size = 0;
+        this.taxis = new Taxi[0];
+        this.x = new double[0];
+        this.y = new double[0];
+        this.states = new byte[0];
+        this.freeCapacity = new double[0];
+        this.fieldVectorX = new double[0];
+        this.fieldVectorY = new double[0];
+        this.idleDistance = new double[0];
+        this.publishedX = new double[0];
+        this.publishedY = new double[0];
+        this.publishedFreeCapacity = new double[0];
+        this.cellStart = new int[columns * rows + 1];
+        this.cellNext = new int[columns * rows];
+        this.cellTaxis = new int[0];
+    }
+
+    /**
+     * Add a new idle taxi. Taxis are added before the simulation starts, with ids counting up from 0.
+     */
+    void add(Taxi taxi, int id, Point position, double capacity) {
+        if (id != size) {
+            throw new IllegalArgumentException("Taxi " + id + " added as taxi " + size);
+        }
+        if (size == x.length) {
+            int capacityOfArrays = Math.max(16, size * 2);
+            taxis = Arrays.copyOf(taxis, capacityOfArrays);
+            x = Arrays.copyOf(x, capacityOfArrays);
+            y = Arrays.copyOf(y, capacityOfArrays);
+            states = Arrays.copyOf(states, capacityOfArrays);
+            freeCapacity = Arrays.copyOf(freeCapacity, capacityOfArrays);
+            fieldVectorX = Arrays.copyOf(fieldVectorX, capacityOfArrays);
+            fieldVectorY = Arrays.copyOf(fieldVectorY, capacityOfArrays);
+            idleDistance = Arrays.copyOf(idleDistance, capacityOfArrays);
+            publishedX = Arrays.copyOf(publishedX, capacityOfArrays);
+            publishedY = Arrays.copyOf(publishedY, capacityOfArrays);
+            publishedFreeCapacity = Arrays.copyOf(publishedFreeCapacity, capacityOfArrays);
+            cellTaxis = Arrays.copyOf(cellTaxis, capacityOfArrays);
+        }
+        size++;
+        taxis[id] = taxi;
+        x[id] = position.x;
+        y[id] = position.y;
+        states[id] = (byte) Taxi.TaxiState.IDLE.ordinal();
+        counters.taxiStateChanged(null, Taxi.TaxiState.IDLE);
+        freeCapacity[id] = capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Taxi getTaxi(int id) {
+        return taxis[id];
+    }
+
+    Taxi.TaxiState getState(int id) {
+        return Taxi.TaxiState.values()[states[id]];
+    }
+
+    /**
+     * Change the state of a taxi. Taxis can change state in the parallel decide phase, so the counters are updated atomically.
+     */
+    void setState(int id, Taxi.TaxiState state) {
+        Taxi.TaxiState previous = getState(id);
+        if (state != previous) {
+            counters.taxiStateChanged(previous, state);
+            states[id] = (byte) state.ordinal();
+        }
+    }
+
+    /**
+     * Update the position and the free capacity of a taxi after it moved in its tick.
+     */
+    void update(int id, Point position, double freeCapacity) {
+        this.x[id] = position.x;
+        this.y[id] = position.y;
+        this.freeCapacity[id] = freeCapacity;
+    }
+
+    double getFreeCapacity(int id) {
+        return freeCapacity[id];
+    }
+
+    Vector2D getFieldVector(int id) {
+        return new Vector2D(fieldVectorX[id], fieldVectorY[id]);
+    }
+
+    void setFieldVector(int id, Vector2D fieldVector) {
+        fieldVectorX[id] = fieldVector.getX();
+        fieldVectorY[id] = fieldVector.getY();
+    }
+
+    double getIdleDistance(int id) {
+        return idleDistance[id];
+    }
+
+    void addIdleDistance(int id, double distance) {
+        idleDistance[id] += distance;
+    }
+
+    void setIdleDistance(int id, double distance) {
+        idleDistance[id] = distance;
+    }
+
+    Point getPublishedPosition(int id) {
+        return new Point(publishedX[id], publishedY[id]);
+    }
+
+    double getPublishedFreeCapacity(int id) {
+        return publishedFreeCapacity[id];
+    }
+
+    /**
+     * Ids of the taxis other than the given taxi that had free capacity at the end of the previous tick
+     * and were closer than the given range to the given position, in id order.
+     */
+    int[] getNeighbours(int id, Point position, double range) {
+        int fromColumn = getColumn(position.x - range);
+        int toColumn = getColumn(position.x + range);
+        int fromRow = getRow(position.y - range);
+        int toRow = getRow(position.y + range);
+        int[] neighbours = new int[16];
+        int count = 0;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int cell = row * columns + fromColumn; cell <= row * columns + toColumn; cell++) {
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int other = cellTaxis[i];
+                    double dx = publishedX[other] - position.x;
+                    double dy = publishedY[other] - position.y;
+                    if (other != id && Math.sqrt(dx * dx + dy * dy) < range) {
+                        if (count == neighbours.length) {
+                            neighbours = Arrays.copyOf(neighbours, count * 2);
+                        }
+                        neighbours[count++] = other;
+                    }
+                }
+            }
+        }
+        neighbours = Arrays.copyOf(neighbours, count);
+        Arrays.sort(neighbours);
+        return neighbours;
+    }
+
+    /**
+     * The taxis other than the given taxi that had free capacity at the end of the previous tick
+     * and are now at a distance between the given bounds from the given position, in id order.
+     */
+    List<Taxi> getTaxisInRing(int id, Point position, double minDistance, double maxDistance) {
+        List<Taxi> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (i == id || publishedFreeCapacity[i] == 0) {
+                continue;
+            }
+            double dx = x[i] - position.x;
+            double dy = y[i] - position.y;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance < maxDistance && distance > minDistance) {
+                result.add(taxis[i]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void tick(@NotNull TimeLapse timeLapse) {
+    }
+
+    /**
+     * Publish the positions and free capacities at the end of the tick and index the taxis with free capacity by grid cell.
+     */
+    @Override
+    public void afterTick(@NotNull TimeLapse timeLapse) {
+        System.arraycopy(x, 0, publishedX, 0, size);
+        System.arraycopy(y, 0, publishedY, 0, size);
+        System.arraycopy(freeCapacity, 0, publishedFreeCapacity, 0, size);
+
+        // Counting sort by cell keeps the taxis of a cell in id order
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < size; i++) {
+            if (publishedFreeCapacity[i] != 0) {
+                cellStart[getCell(i) + 1]++;
+            }
+        }
+        for (int cell = 0; cell < columns * rows; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        System.arraycopy(cellStart, 0, cellNext, 0, columns * rows);
+        for (int i = 0; i < size; i++) {
+            if (publishedFreeCapacity[i] != 0) {
+                cellTaxis[cellNext[getCell(i)]++] = i;
+            }
+        }
+    }
+
+    private int getCell(int id) {
+        return getRow(publishedY[id]) * columns + getColumn(publishedX[id]);
+    }
+
+    private int getColumn(double x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    private int getRow(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / cellSize)));
+    }
+}
@@ -0,0 +1,203 @@
+package core;
+
+import core.statistics.StatisticsDTO;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Successive-halving search over a grid of simulation options, in the grid format of {@link SweepRunner}.
+ * All configurations first simulate a short prefix of the horizon. They are ranked by the mean pickup waiting time or
+ * the mean travel overhead of that prefix, only the best part continues with a prefix that is a few times longer,
+ * and so on until the last configurations simulate the whole horizon. Poor configurations thus stop early.
+ * <p>
+ * With checkpoints a surviving configuration continues from the checkpoint at the end of its previous prefix
+ * instead of simulating that prefix again. Configurations with a road graph always start over, as checkpoints need the plane.
+ *
+ * @author Evert Etienne & Olivier Kamers
+ */
+public final class HalvingRunner {
+    private static final int DEFAULT_ETA = 2;
+    private static final int DEFAULT_PREFIX_HOURS = 3;
+
+    private HalvingRunner() {
+    }
+
+    /**
+     * Starts the search.
+     *
+     * @param args The arguments for the search
+     *             usage: MAS-halving [options] grid-file
+     *             -c,--checkpoints     Continue the survivors from checkpoints
+     *             -e,--eta <arg>       Factor between the lengths of the prefixes, and between the configurations of successive rounds
+     *             -j,--jobs <arg>      Simulations to run at the same time
+     *             -o,--output <arg>    Directory for the statistics and checkpoint files
+     *             -P,--prefix <arg>    Simulated hours of the first round
+     *             -w,--metric <arg>    Ranking metric: wait (mean pickup waiting time) or overhead (mean travel overhead)
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+
+        options.addOption(new Option("c", "checkpoints", false, "Continue the survivors from checkpoints"));
+        options.addOption(Option.builder("e").longOpt("eta").desc("Factor between the lengths of the prefixes, and between the configurations of successive rounds").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("j").longOpt("jobs").desc("Simulations to run at the same time").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("o").longOpt("output").desc("Directory for the statistics and checkpoint files").hasArg().build());
+        options.addOption(Option.builder("P").longOpt("prefix").desc("Simulated hours of the first round").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("w").longOpt("metric").desc("Ranking metric: wait (mean pickup waiting time) or overhead (mean travel overhead)").hasArg().build());
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            if (cmd.getArgs().length != 1) {
+                throw new ParseException("Missing grid file");
+            }
+            int jobs = cmd.hasOption("jobs") ? ((Number) cmd.getParsedOptionValue("jobs")).intValue() : Runtime.getRuntime().availableProcessors();
+            int eta = cmd.hasOption("eta") ? Math.max(2, ((Number) cmd.getParsedOptionValue("eta")).intValue()) : DEFAULT_ETA;
+            int prefixHours = cmd.hasOption("prefix") ? Math.max(1, ((Number) cmd.getParsedOptionValue("prefix")).intValue()) : DEFAULT_PREFIX_HOURS;
+            String metric = cmd.getOptionValue("metric", "wait");
+            if (!metric.equals("wait") && !metric.equals("overhead")) {
+                throw new ParseException("Unknown metric " + metric);
+            }
+            String output = cmd.getOptionValue("output", "stats");
+
+            search(SweepRunner.readGrid(cmd.getArgs()[0]), jobs, eta, prefixHours, metric, cmd.hasOption("checkpoints"), output);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("MAS-halving [options] grid-file", options);
+
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Could not read grid file: " + e.getMessage());
+
+            System.exit(1);
+        }
+    }
+
+    private static void search(List<String[]> configs, int jobs, int eta, int prefixHours, String metric, boolean useCheckpoints, String output) throws ParseException {
+        // Parse all configurations first, so a mistake in the grid does not show up halfway through the search
+        Options options = SimulationSettings.createOptions();
+        CommandLineParser parser = new DefaultParser();
+        List<SimulationSettings> configSettings = new ArrayList<>();
+        for (String[] args : configs) {
+            SimulationSettings settings = new SimulationSettings(parser.parse(options, args));
+            if (settings.showGUI || settings.checkpointFile != null || settings.resumeFile != null || parser.parse(options, args).hasOption("hours")) {
+                throw new ParseException("A search runs without GUI, checkpoints or hours: " + Arrays.toString(args));
+            }
+            configSettings.add(settings);
+        }
+
+        LocalDateTime stopTime = configSettings.stream().map(s -> s.stopTime).max(LocalDateTime::compareTo).orElse(Helper.STOP_TIME);
+        int horizonHours = (int) Duration.between(Helper.START_TIME, stopTime).toHours();
+        TripData trips = TripData.load(new MySQLDataLoader(), Helper.START_TIME, stopTime);
+        System.out.println("Loaded " + trips.size() + " trips for " + configs.size() + " configurations");
+
+        // The fields cover the whole horizon, so a configuration sees the same field in every round
+        Map<List<Integer>, DiscreteField> fields = new HashMap<>();
+        for (SimulationSettings settings : configSettings) {
+            if (settings.useField) {
+                fields.computeIfAbsent(Arrays.asList(settings.matrixStep, settings.minPerFrame),
+                        key -> new FieldGenerator(key.get(0), key.get(1), stopTime).load(DiscreteField.DEFAULT_TAXI_INFLUENCE_RANGE));
+            }
+        }
+
+        long searchId = System.currentTimeMillis();
+        List<Integer> survivors = new ArrayList<>();
+        for (int i = 0; i < configs.size(); i++) {
+            survivors.add(i);
+        }
+        int previousHours = 0;
+        int hours = Math.min(prefixHours, horizonHours);
+        for (int round = 0; ; round++) {
+            System.out.println("Round " + round + ": " + survivors.size() + " configurations for " + hours + " hours");
+            double[] scores = new double[configs.size()];
+            ExecutorService executor = Executors.newFixedThreadPool(jobs);
+            List<Future<StatisticsDTO>> results = new ArrayList<>();
+            for (int config : survivors) {
+                SimulationSettings settings = configSettings.get(config);
+                boolean checkpoints = useCheckpoints && settings.roadGraphFile == null;
+                List<String> runArgs = new ArrayList<>(Arrays.asList(configs.get(config)));
+                runArgs.addAll(Arrays.asList("-H", Integer.toString(hours)));
+                if (checkpoints) {
+                    // Checkpoints at every multiple of the first prefix include the ends of all later prefixes
+                    String checkpointFile = output + "/halving_" + searchId + "_" + config;
+                    runArgs.addAll(Arrays.asList("-K", checkpointFile, "-I", Integer.toString(prefixHours * 60)));
+                    if (previousHours > 0) {
+                        runArgs.addAll(Arrays.asList("-R", checkpointFile + "-" + previousHours * 60 + ".ckpt"));
+                    }
+                }
+                String[] args = runArgs.toArray(new String[0]);
+                SimulationSettings roundSettings = new SimulationSettings(parser.parse(options, args));
+                DiscreteField field = settings.useField
+                        ? fields.get(Arrays.asList(settings.matrixStep, settings.minPerFrame)).withTaxiInfluenceRange(settings.taxiInfluenceRange)
+                        : null;
+                String fileName = output + "/halving_" + searchId + "_" + round + "_" + config + (settings.compressStats ? ".json.gz" : ".json");
+                results.add(executor.submit(() -> {
+                    StatisticsDTO stats = MasProject.run(args, roundSettings, field, trips);
+                    stats.save(fileName);
+                    return stats;
+                }));
+            }
+            executor.shutdown();
+
+            for (int i = 0; i < survivors.size(); i++) {
+                int config = survivors.get(i);
+                try {
+                    StatisticsDTO stats = results.get(i).get();
+                    double score = metric.equals("wait") ? stats.getMeanPickupWaitingTime() : stats.getMeanTravelTimeOverhead();
+                    scores[config] = Double.isNaN(score) ? Double.POSITIVE_INFINITY : score;
+                } catch (InterruptedException | ExecutionException e) {
+                    System.out.println("Configuration " + config + " " + Arrays.toString(configs.get(config)) + " failed");
+                    e.printStackTrace();
+                    scores[config] = Double.POSITIVE_INFINITY;
+                }
+            }
+
+            survivors.sort(Comparator.comparingDouble(config -> scores[config]));
+            for (int config : survivors) {
+                System.out.println("  " + metric + " " + scores[config] + " " + Arrays.toString(configs.get(config)));
+            }
+            if (hours >= horizonHours || survivors.size() == 1) {
+                System.out.println("Best configuration " + Arrays.toString(configs.get(survivors.get(0))));
+                deleteCheckpoints(output, searchId, new ArrayList<>(), 0);
+                return;
+            }
+
+            survivors = survivors.stream().limit(Math.max(1, (survivors.size() + eta - 1) / eta)).collect(Collectors.toList());
+            previousHours = hours;
+            hours = Math.min(horizonHours, hours * eta);
+            deleteCheckpoints(output, searchId, survivors, previousHours);
+        }
+    }
+
+    /**
+     * Delete the checkpoints of this search, except those of the given configurations at the given number of hours.
+     */
+    private static void deleteCheckpoints(String output, long searchId, List<Integer> keep, int hours) {
+        File[] files = new File(output).listFiles((dir, name) -> name.startsWith("halving_" + searchId + "_") && name.endsWith(".ckpt"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            boolean kept = keep.stream().anyMatch(config -> file.getName().equals("halving_" + searchId + "_" + config + "-" + hours * 60 + ".ckpt"));
+            if (!kept && !file.delete()) {
+                System.out.println("Could not delete " + file);
+            }
+        }
+    }
+}
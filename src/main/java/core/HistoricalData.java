@@ -32,7 +32,7 @@ public class HistoricalData {
         return id;
     }
 
-    private LocalDateTime getPickupTime() {
+    LocalDateTime getPickupTime() {
         return pickupTime;
     }
 
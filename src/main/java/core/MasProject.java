@@ -16,29 +16,41 @@ package core;
  */
 
 import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.ModelBuilder;
 import com.github.rinde.rinsim.core.model.comm.CommModel;
 import com.github.rinde.rinsim.core.model.pdp.DefaultPDPModel;
 import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
 import com.github.rinde.rinsim.core.model.road.RoadModel;
 import com.github.rinde.rinsim.core.model.road.RoadModelBuilders;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
 import com.github.rinde.rinsim.core.model.time.TickListener;
 import com.github.rinde.rinsim.core.model.time.TimeLapse;
 import com.github.rinde.rinsim.ui.View;
+import com.github.rinde.rinsim.ui.renderers.GraphRoadModelRenderer;
 import com.github.rinde.rinsim.ui.renderers.PlaneRoadModelRenderer;
 import com.github.rinde.rinsim.ui.renderers.RoadUserRenderer;
 import core.statistics.StatisticsDTO;
 import core.statistics.StatsPanel;
 import core.statistics.StatsTracker;
+import core.statistics.TimeSeries;
 import org.apache.commons.cli.*;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nullable;
 import javax.measure.unit.SI;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.stream.Collectors;
 
@@ -50,11 +62,11 @@ import java.util.stream.Collectors;
 public final class MasProject {
     public static final double MAX_SPEED = 15;
     static final int TAXI_CAPACITY = 5;
-    private static final int NUM_TAXIS = 10000;
+    static final int NUM_TAXIS = 10000;
     private static final int SPEED_UP = 5;
-    private static final double DEFAULT_SAMPLE = 0.02;
-
-    private static Random r = new Random(2810199416101995L);
+    static final long SAMPLE_SEED = 2810199416101995L;
+    private static final long PROGRESS_INTERVAL = 15 * 60 * 1000;
+    static final Duration TRIP_PREFETCH_DURATION = Duration.ofMinutes(15);
 
     private MasProject() {
     }
@@ -66,27 +78,37 @@ public final class MasProject {
      *             usage: MAS-project
      *             -f,--field              Enable field
      *             -F,--frange <arg>       Range for field analysis
+     *             -b,--bidrange <arg>     Maximum pickup distance for bidding
+     *             -B,--rebalance <arg>    Simulated minutes between rebalancing rounds of idle taxis
+     *             -D,--days <arg>         Simulated days
+     *             -E,--exactstops <arg>   Maximum number of route stops that are planned exactly
      *             -g,--gui                Run with GUI
+     *             -G,--graph <arg>        Road graph file (.dot)
+     *             -h,--histograms <arg>   Keep histograms with the given significant digits instead of all waiting times and overheads
+     *             -H,--hours <arg>        Simulated hours, instead of whole days
      *             -i,--influence <arg>    Taxi repulsion influence range
+     *             -I,--checkpointinterval <arg> Simulated minutes between checkpoints
+     *             -k,--ticklength <arg>   Tick length in seconds
+     *             -K,--checkpoint <arg>   Checkpoint file prefix
+     *             -L,--searchbudget <arg> Moves evaluated by the local search of longer routes
      *             -l,--idlelimit <arg>    Distance limit for idle driving
      *             -m,--mtxstep <arg>      Matrix Subdivision Step
+     *             -M,--maxheap <arg>      Heap ceiling in MB that bounds the memory of long runs
+     *             -n,--incremental        Incremental route updates
+     *             -p,--pooling <arg>      Maximum concurrent riders per taxi
      *             -r,--resolution <arg>   Minutes per time frame
+     *             -R,--resume <arg>       Checkpoint file to resume from
      *             -s,--sample <arg>       Data sampling factor
+     *             -S,--buckets <arg>      Seconds per bucket of the time series, comma separated (default 10,60,900)
      *             -t,--trade              Enable trading
+     *             -T,--threads <arg>      Threads for the taxi decide phase
+     *             -u,--fieldinterval <arg> Ticks between field updates of idle taxis
+     *             -x,--force              Simulate again even if the result of the same run is cached
+     *             -z,--gzip               Save the statistics gzipped
      */
     public static void main(@Nullable String[] args) {
         System.out.println(Arrays.toString(args));
-        Options options = new Options();
-
-        options.addOption(new Option("g", "gui", false, "Run with GUI"));
-        options.addOption(new Option("f", "field", false, "Enable field"));
-        options.addOption(new Option("t", "trade", false, "Enable trading"));
-        options.addOption(Option.builder("s").longOpt("sample").desc("Data sampling factor").hasArg().type(Number.class).build());
-        options.addOption(Option.builder("m").longOpt("mtxstep").desc("Matrix Subdivision Step").hasArg().type(Number.class).build());
-        options.addOption(Option.builder("r").longOpt("resolution").desc("Minutes per time frame").hasArg().type(Number.class).build());
-        options.addOption(Option.builder("i").longOpt("influence").desc("Taxi repulsion influence range").hasArg().type(Number.class).build());
-        options.addOption(Option.builder("F").longOpt("frange").desc("Range for field analysis").hasArg().type(Number.class).build());
-        options.addOption(Option.builder("l").longOpt("idlelimit").desc("Distance limit for idle driving").hasArg().type(Number.class).build());
+        Options options = SimulationSettings.createOptions();
 
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -94,117 +116,286 @@ public final class MasProject {
 
         try {
             cmd = parser.parse(options, args);
-            boolean showGUI = cmd.hasOption("gui");
-            boolean useField = cmd.hasOption("field");
-            boolean useTrading = cmd.hasOption("trade");
-            double sample = cmd.hasOption("sample") ? (double) cmd.getParsedOptionValue("sample") : DEFAULT_SAMPLE;
-            int matrixStep = cmd.hasOption("mtxstep") ? ((Number) cmd.getParsedOptionValue("mtxstep")).intValue() : 0;
-            int minPerFrame = cmd.hasOption("resolution") ? ((Number) cmd.getParsedOptionValue("resolution")).intValue() : 1;
-            double taxiInfluenceRange = cmd.hasOption("influence") ? (double) cmd.getParsedOptionValue("influence") : DiscreteField.DEFAULT_TAXI_INFLUENCE_RANGE;
-            int fieldRange = cmd.hasOption("frange") ? ((Number) cmd.getParsedOptionValue("frange")).intValue() : Taxi.DEFAULT_FIELD_RANGE;
-            double idleTravelLimit = cmd.hasOption("idlelimit") ? (double) cmd.getParsedOptionValue("idlelimit") : Double.MAX_VALUE;
-
-            run(args, showGUI, useField, useTrading, sample, matrixStep, minPerFrame, taxiInfluenceRange, fieldRange, idleTravelLimit);
+            SimulationSettings settings = new SimulationSettings(cmd);
+
+            if (settings.heapCeiling > Runtime.getRuntime().maxMemory()) {
+                System.out.println("The heap ceiling is larger than the maximum heap of " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB");
+            }
+            MySQLDataLoader loader = new MySQLDataLoader();
+            String fingerprint = ResultCache.isCacheable(settings) ? loader.getFingerprint() : null;
+            ResultCache cache = fingerprint != null ? new ResultCache(ResultCache.DIRECTORY, fingerprint) : null;
+            if (ResultCache.isCacheable(settings) && cache == null) {
+                System.out.println("The trip data could not be identified, so the result is not cached");
+            }
+            if (cache != null && !settings.force) {
+                StatisticsDTO cached = cache.get(settings, SAMPLE_SEED);
+                if (cached != null) {
+                    System.out.println("Cached result " + cache.getFile(settings, SAMPLE_SEED));
+                    System.out.println(cached);
+                    cached.save(settings.compressStats);
+                    return;
+                }
+            }
+            DiscreteField discreteField = loadField(settings);
+
+            StatisticsDTO stats = run(args, settings, discreteField, new TripPrefetcher(loader, TRIP_PREFETCH_DURATION));
+            System.out.println(stats);
+            stats.save(settings.compressStats);
+            if (cache != null) {
+                try {
+                    cache.put(settings, SAMPLE_SEED, stats);
+                } catch (IOException e) {
+                    System.out.println("Could not cache the result: " + e.getMessage());
+                }
+            }
         } catch (ParseException e) {
             System.out.println(e.getMessage());
             formatter.printHelp("MAS-project", options);
 
             System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Could not load road graph or checkpoint: " + e.getMessage());
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Load the field of the given settings, or null without field.
+     * A run with a heap ceiling only keeps the frames around the current time, and the frames a rebalancing round looks ahead.
+     */
+    @Nullable
+    static DiscreteField loadField(SimulationSettings settings) {
+        if (!settings.useField) {
+            return null;
+        }
+        FieldGenerator fieldGenerator = new FieldGenerator(settings.matrixStep, settings.minPerFrame, settings.stopTime);
+        if (settings.heapCeiling > 0) {
+            int retainedFrames = 2 + (int) (settings.rebalanceInterval / Duration.ofMinutes(Math.max(1, settings.minPerFrame)).toMillis());
+            return fieldGenerator.loadWindow(settings.taxiInfluenceRange, retainedFrames);
         }
+        return fieldGenerator.load(settings.taxiInfluenceRange);
     }
 
     /**
-     * Starts the project.
+     * Run one simulation with the given settings, field and historical trips, and return its statistics.
+     * Runs only share the given field and trips, so several runs can be done at the same time.
+     * With a resume file the run continues from that checkpoint.
      */
-    private static void run(String[] args, boolean showGUI, boolean useField, boolean useTrading, double sample, int matrixStep, int minPerFrame, double taxiInfluenceRange, int fieldRange, double idleTravelLimit) {
-        DiscreteField discreteField = null;
-        if (useField) {
-            FieldGenerator fieldGenerator = new FieldGenerator(matrixStep, minPerFrame);
-            discreteField = fieldGenerator.load(taxiInfluenceRange);
+    static StatisticsDTO run(String[] args, SimulationSettings settings, DiscreteField discreteField, TripSource trips) throws IOException {
+        return run(args, settings, discreteField, trips, null);
+    }
+
+    /**
+     * Run one simulation like {@link #run(String[], SimulationSettings, DiscreteField, TripSource)},
+     * with an extra tick listener that ticks after all agents, for example to watch the memory use.
+     */
+    static StatisticsDTO run(String[] args, SimulationSettings settings, DiscreteField discreteField, TripSource trips, @Nullable TickListener probe) throws IOException {
+        Checkpoint checkpoint = null;
+        if (settings.resumeFile != null) {
+            checkpoint = Checkpoint.load(new File(settings.resumeFile));
+            checkpoint.verify(settings);
+        }
+        if (settings.checkpointFile != null && settings.roadGraphFile != null) {
+            throw new IOException("Checkpoints are only supported without a road graph");
+        }
+        final Random r = checkpoint != null ? checkpoint.random : new Random(SAMPLE_SEED);
+        final long resumeTime = checkpoint != null ? checkpoint.time : 0;
+        final MessageRecorder recorder = settings.checkpointFile != null ? new MessageRecorder() : null;
+
+        RoadNetwork roadNetwork = null;
+        DistanceMetric distanceMetric = DistanceMetric.EUCLIDEAN;
+        ModelBuilder<? extends RoadModel, RoadUser> roadModelBuilder;
+        if (settings.roadGraphFile != null) {
+            // Route costs use the contraction hierarchy, the road model only moves the taxis over the graph
+            roadNetwork = RoadNetwork.load(settings.roadGraphFile);
+            distanceMetric = new NetworkDistances(roadNetwork, ContractionHierarchy.loadOrBuild(roadNetwork, new File(settings.roadGraphFile + ".ch")));
+            roadModelBuilder = RoadModelBuilders.staticGraph(roadNetwork.toGraph()).withCache();
+        } else {
+            roadModelBuilder = RoadModelBuilders.plane()
+                    .withMinPoint(Helper.convertToPointInBoundaries(Helper.ROADMODEL_MIN_POINT))
+                    .withMaxPoint(Helper.convertToPointInBoundaries(Helper.ROADMODEL_MAX_POINT))
+                    .withMaxSpeed(MAX_SPEED);
         }
 
         Simulator.Builder simulatorBuilder = Simulator.builder()
-                .addModel(RoadModelBuilders.plane()
-                        .withMinPoint(Helper.convertToPointInBoundaries(Helper.ROADMODEL_MIN_POINT))
-                        .withMaxPoint(Helper.convertToPointInBoundaries(Helper.ROADMODEL_MAX_POINT))
-                        .withMaxSpeed(MAX_SPEED)
-                )
+                .addModel(roadModelBuilder)
                 .addModel(CommModel.builder())
                 .addModel(DefaultPDPModel.builder())
                 .addModel(StatsTracker.builder())
                 .setTimeUnit(SI.MILLI(SI.SECOND))
-                .setTickLength(1000L);
+                .setTickLength(settings.tickLength);
 
-        if (showGUI) simulatorBuilder.addModel(createGui(discreteField));
+        if (settings.showGUI) simulatorBuilder.addModel(createGui(discreteField, roadNetwork != null));
 
         final Simulator simulator = simulatorBuilder.build();
+        if (checkpoint != null) {
+            // Before anything is registered the bare clock skips to the tick that ends at the checkpoint, in which it is restored
+            while (simulator.getCurrentTime() < resumeTime - settings.tickLength) {
+                simulator.tick();
+            }
+        }
 
         final RandomGenerator rng = simulator.getRandomGenerator();
 
         final RoadModel roadModel = simulator.getModelProvider().getModel(RoadModel.class);
         final DefaultPDPModel pdpModel = simulator.getModelProvider().getModel(DefaultPDPModel.class);
+        final StatsTracker statsTracker = simulator.getModelProvider().getModel(StatsTracker.class);
+        statsTracker.limitSamples(settings.sampleLimit);
+        if (settings.histogramDigits > 0) {
+            statsTracker.useHistograms(settings.histogramDigits);
+        }
 
-        // Register random Taxis
-        for (int i = 0; i < NUM_TAXIS * sample; i++) {
-            simulator.register(new Taxi(i, roadModel.getRandomPosition(rng), TAXI_CAPACITY, discreteField, useTrading, fieldRange, idleTravelLimit));
+        // Delivered customers are collected from the PDP events and unregistered in one batch every tick
+        final List<Parcel> deliveredCustomers = new ArrayList<>();
+        final Map<Long, Customer> customers = new LinkedHashMap<>();
+        pdpModel.getEventAPI().addListener(e -> {
+            Parcel parcel = ((PDPModelEvent) e).parcel;
+            deliveredCustomers.add(parcel);
+            customers.remove(((Customer) parcel).getId());
+        }, PDPModel.PDPModelEventType.END_DELIVERY);
+
+        final FleetCounters counters = new FleetCounters();
+        pdpModel.getEventAPI().addListener(counters, PDPModel.PDPModelEventType.NEW_VEHICLE, PDPModel.PDPModelEventType.NEW_PARCEL, PDPModel.PDPModelEventType.START_PICKUP);
+        final FleetState fleet = new FleetState(counters, roadModel.getBounds(), settings.taxiInfluenceRange);
+        simulator.addTickListener(fleet);
+        final TimerWheel timers = new TimerWheel(settings.tickLength);
+        if (settings.rebalanceInterval > 0 && discreteField != null) {
+            // The idle taxis get their targets before they decide
+            simulator.addTickListener(new Rebalancer(discreteField, fleet, settings.rebalanceInterval, resumeTime));
         }
 
-        MySQLDataLoader dataLoader = new MySQLDataLoader();
+        // The parallel decide phase has to tick before the taxis
+        ParallelTicker parallelTicker = null;
+        if (settings.threads > 1) {
+            parallelTicker = new ParallelTicker(settings, distanceMetric);
+            simulator.addTickListener(parallelTicker);
+        }
 
+        final TimeSeries series = new TimeSeries(settings.seriesBuckets);
+        final TimeSeries.Metric idleTaxis = series.register("idleTaxis");
+        final TimeSeries.Metric waitingCustomers = series.register("waitingCustomers");
 
-        ArrayList<Integer> amountOfIdleTaxis = new ArrayList<>();
-        ArrayList<Integer> amountOfWaitingCustomers = new ArrayList<>();
+        final RoadNetwork network = roadNetwork;
+
+        // Register random Taxis, or the taxis of the checkpoint
+        final List<Taxi> taxis = new ArrayList<>();
+        final int taxiCapacity = Math.max(TAXI_CAPACITY, settings.maxConcurrentPickups);
+        if (checkpoint == null) {
+            for (int i = 0; i < NUM_TAXIS * settings.sample; i++) {
+                taxis.add(new Taxi(i, roadModel.getRandomPosition(rng), taxiCapacity, discreteField, settings, roadNetwork, distanceMetric, fleet, timers, recorder));
+            }
+        } else {
+            final DistanceMetric metric = distanceMetric;
+            checkpoint.restoreAgents((id, position) -> new Taxi(id, position, taxiCapacity, discreteField, settings, network, metric, fleet, timers, recorder),
+                    timers, recorder, series, taxis, customers);
+        }
+        for (Taxi taxi : taxis) {
+            simulator.register(taxi);
+            if (parallelTicker != null) {
+                parallelTicker.add(taxi);
+            }
+        }
 
         simulator.addTickListener(new TickListener() {
             @Override
             public void tick(@NotNull TimeLapse time) {
-                pdpModel.getParcels(PDPModel.ParcelState.DELIVERED).forEach(simulator::unregister);
+                if (time.getStartTime() < resumeTime) {
+                    // Nothing is simulated in the tick that restores the checkpoint
+                    return;
+                }
 
-                if (time.getStartTime() % (15 * 60 * 1000) == 0) {
+                deliveredCustomers.forEach(simulator::unregister);
+                deliveredCustomers.clear();
+
+                if (time.getStartTime() % PROGRESS_INTERVAL < time.getTickLength()) {
                     // Print progress every 15 simulated minutes
                     System.out.println(LocalTime.now().toString() + " ==> " + Helper.START_TIME.plusNanos(time.getStartTime() * 1000000));
                 }
-                amountOfIdleTaxis.add((int) roadModel.getObjectsOfType(Taxi.class).stream().filter(t -> t.getState() == Taxi.TaxiState.IDLE).count());
-                amountOfWaitingCustomers.add(roadModel.getObjectsOfType(Customer.class).size());
+                idleTaxis.record(time.getStartTime(), counters.getIdleTaxis());
+                waitingCustomers.record(time.getStartTime(), counters.getWaitingCustomers());
 
-                if (Helper.START_TIME.plusNanos(time.getEndTime() * 1000000).isAfter(Helper.STOP_TIME)) {
-                    if (roadModel.getObjectsOfType(Customer.class).isEmpty() &&
-                            roadModel.getObjectsOfType(Taxi.class).stream().allMatch(t -> t.getState() == Taxi.TaxiState.IDLE)) {
-                        simulator.stop();
-                    }
-                } else {
-                    List<HistoricalData> data = dataLoader.read(
+                boolean ended = Helper.START_TIME.plusNanos(time.getEndTime() * 1000000).isAfter(settings.stopTime);
+                boolean finished = ended && counters.getWaitingCustomers() == 0 && counters.allTaxisIdle();
+                if (finished) {
+                    simulator.stop();
+                } else if (!ended) {
+                    List<HistoricalData> data = trips.read(
                             Helper.START_TIME.plusNanos(time.getStartTime() * 1000000),
                             Helper.START_TIME.plusNanos(time.getEndTime() * 1000000)
                     );
 
                     for (HistoricalData h : data) {
                         float chance = r.nextFloat();
-                        if (chance <= sample) {
-                            simulator.register(new Customer(h, time));
+                        if (chance <= settings.sample) {
+                            Customer customer = network == null
+                                    ? new Customer(h, time, timers, recorder)
+                                    : new Customer(h, time, network.snap(h.getPickupPoint()), network.snap(h.getDropoffPoint()), timers, recorder);
+                            customers.put(customer.getId(), customer);
+                            simulator.register(customer);
                         }
                     }
                 }
             }
 
             @Override
-            public void afterTick(TimeLapse timeLapse) {
+            public void afterTick(TimeLapse time) {
+                if (recorder == null) {
+                    return;
+                }
+                if (time.getEndTime() > resumeTime && time.getEndTime() % settings.checkpointInterval < time.getTickLength()) {
+                    File file = new File(settings.checkpointFile + "-" + time.getEndTime() / 60000 + ".ckpt");
+                    try {
+                        Checkpoint.write(file, time.getEndTime(), settings, r, series, taxis, customers.values(), recorder, statsTracker);
+                        System.out.println("Wrote checkpoint " + file);
+                    } catch (IOException e) {
+                        // A failed checkpoint should not end a long run
+                        e.printStackTrace();
+                    }
+                }
+                recorder.clear();
             }
         });
 
+        // The customers are woken up after the taxis and the tick listener above
+        simulator.addTickListener(timers);
+
+        if (checkpoint != null) {
+            customers.values().forEach(simulator::register);
+            final Checkpoint restored = checkpoint;
+            simulator.addTickListener(new TickListener() {
+                @Override
+                public void tick(@NotNull TimeLapse time) {
+                    if (time.getEndTime() == restored.time) {
+                        try {
+                            restored.restoreTick(pdpModel, time, statsTracker);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Could not restore checkpoint", e);
+                        }
+                    }
+                }
+
+                @Override
+                public void afterTick(TimeLapse time) {
+                }
+            });
+        }
+
+        if (probe != null) {
+            simulator.addTickListener(probe);
+        }
+
         simulator.start();
+        if (parallelTicker != null) {
+            parallelTicker.shutdown();
+        }
 
         // simulation is done, lets print the statistics!
-        StatisticsDTO stats = simulator.getModelProvider().getModel(StatsTracker.class).getStatistics();
-        stats.setAmountOfIdleTaxis(amountOfIdleTaxis);
-        stats.setAmountOfWaitingCustomers(amountOfWaitingCustomers);
+        StatisticsDTO stats = statsTracker.getStatistics();
+        stats.setSeries(series.getRollups());
         List<Double> totalIdleMovements = roadModel.getObjectsOfType(Taxi.class)
                 .stream()
-                .map(Taxi::getIdleMoveProgress)
-                .map(l -> l
-                        .stream()
-                        .mapToDouble(mp -> mp.distance().getValue())
-                        .sum())
+                .map(Taxi::getIdleMoveDistance)
                 .collect(Collectors.toList());
         stats.setTotalIdleMovement(totalIdleMovements);
         ArrayList<Double> tradeProfits = roadModel.getObjectsOfType(Taxi.class)
@@ -213,11 +404,10 @@ public final class MasProject {
                 .collect(ArrayList::new, ArrayList::addAll, ArrayList::addAll);
         stats.setTradeProfits(tradeProfits);
         stats.setArgs(args);
-        System.out.println(stats);
-        stats.save();
+        return stats;
     }
 
-    private static View.Builder createGui(DiscreteField df) {
+    private static View.Builder createGui(DiscreteField df, boolean useRoadGraph) {
         View.Builder builder = View.builder();
 
         if (df != null) {
@@ -228,7 +418,7 @@ public final class MasProject {
 
         builder = builder
                 .withSpeedUp(SPEED_UP)
-                .with(PlaneRoadModelRenderer.builder())
+                .with(useRoadGraph ? GraphRoadModelRenderer.builder() : PlaneRoadModelRenderer.builder())
                 .with(StatsPanel.builder())
                 .with(RoadUserRenderer.builder()
                         .withImageAssociation(
@@ -0,0 +1,56 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.comm.CommUser;
+import com.github.rinde.rinsim.core.model.comm.MessageContents;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the messages the agents send during a tick, so they can be written to a {@link Checkpoint}.
+ * The comm model delivers them at the end of the tick, so they are the unread messages when the checkpoint is taken.
+ */
+final class MessageRecorder {
+    private final List<CommUser> senders;
+    private final List<CommUser> recipients;
+    private final List<MessageContents> contents;
+
+    MessageRecorder() {
+        this.senders = new ArrayList<>();
+        this.recipients = new ArrayList<>();
+        this.contents = new ArrayList<>();
+    }
+
+    /**
+     * Record a message. A broadcast has no recipient.
+     */
+    void record(CommUser sender, @Nullable CommUser recipient, MessageContents contents) {
+        this.senders.add(sender);
+        this.recipients.add(recipient);
+        this.contents.add(contents);
+    }
+
+    int size() {
+        return contents.size();
+    }
+
+    CommUser getSender(int index) {
+        return senders.get(index);
+    }
+
+    @Nullable
+    CommUser getRecipient(int index) {
+        return recipients.get(index);
+    }
+
+    MessageContents getContents(int index) {
+        return contents.get(index);
+    }
+
+    void clear() {
+        senders.clear();
+        recipients.clear();
+        contents.clear();
+    }
+}
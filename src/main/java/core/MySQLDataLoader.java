@@ -1,5 +1,6 @@
 package core;
 
+import javax.annotation.Nullable;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
@@ -22,7 +23,7 @@ import java.util.List;
  * KEY `idx_tpep_pickup_datetime` (`tpep_pickup_datetime`)
  * ) ENGINE=InnoDB AUTO_INCREMENT=20617002 DEFAULT CHARSET=utf8;
  */
-public class MySQLDataLoader {
+public class MySQLDataLoader implements TripSource {
     private static String CONNECTION_STRING = "jdbc:mysql://%s:%s/%s?useUnicode=true&useJDBCCompliantTimezoneShift=true&useLegacyDatetimeCode=false&serverTimezone=CET";
     private Connection connection;
 
@@ -46,7 +47,8 @@ public class MySQLDataLoader {
     /**
      * Read data with tpep_pickup_datetime between two dates.
      */
-    List<HistoricalData> read(LocalDateTime start, LocalDateTime end) {
+    @Override
+    public List<HistoricalData> read(LocalDateTime start, LocalDateTime end) {
         try {
             PreparedStatement statement = connection.prepareStatement("SELECT * FROM pickups WHERE tpep_pickup_datetime >= ? AND tpep_pickup_datetime < ?;");
             statement.setObject(1, start);
@@ -65,6 +67,46 @@ public class MySQLDataLoader {
         }
     }
 
+    /**
+     * Identify the data source: the database, the number of trips, the highest trip id and the last update time of the table,
+     * or its checksum if the database does not keep that time, so that added, removed and changed trips all change it.
+     *
+     * @return The fingerprint, or null if the data source could not be read, in which case no results may be cached.
+     */
+    @Nullable
+    String getFingerprint() {
+        if (connection == null) {
+            return null;
+        }
+        String database = System.getenv("DB_HOST") + ":" + System.getenv("DB_PORT") + "/" + System.getenv("DB_NAME");
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet rst = statement.executeQuery("SELECT COUNT(*), MAX(id), (SELECT UPDATE_TIME FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'pickups') FROM pickups;");
+            if (!rst.next()) {
+                return null;
+            }
+            String fingerprint = database + "#" + rst.getLong(1) + "#" + rst.getLong(2);
+            String updateTime = rst.getString(3);
+            rst.close();
+            if (updateTime == null) {
+                // InnoDB does not always keep the update time, then the table is hashed by the database
+                rst = statement.executeQuery("CHECKSUM TABLE pickups;");
+                if (!rst.next() || rst.getString(2) == null) {
+                    return null;
+                }
+                fingerprint += "#checksum " + rst.getLong(2);
+                rst.close();
+            } else {
+                fingerprint += "#updated " + updateTime;
+            }
+            statement.close();
+            return fingerprint;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     private HistoricalData parse(ResultSet rst) throws SQLException {
         return new HistoricalData(
                 rst.getLong("id"),
@@ -0,0 +1,92 @@
+package core;
+
+import com.github.rinde.rinsim.geom.Point;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shortest path distances over a {@link RoadNetwork}, calculated with a {@link ContractionHierarchy}.
+ * Points that are not a node of the network are connected in a straight line to their nearest node.
+ * Node to node distances are kept in a bounded least recently used cache,
+ * which is filled with complete many-to-many tables when a route is prepared.
+ */
+final class NetworkDistances implements DistanceMetric {
+    private static final int MAX_CACHED_DISTANCES = 1 << 20;
+
+    private final RoadNetwork network;
+    private final ContractionHierarchy hierarchy;
+    private final Map<Long, Double> cache;
+
+    NetworkDistances(RoadNetwork network, ContractionHierarchy hierarchy) {
+        this.network = network;
+        this.hierarchy = hierarchy;
+        this.cache = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+                return size() > MAX_CACHED_DISTANCES;
+            }
+        };
+    }
+
+    @Override
+    public double distance(Point from, Point to) {
+        int fromNode = network.getNearestNode(from);
+        int toNode = network.getNearestNode(to);
+        return Point.distance(from, network.getNode(fromNode))
+                + getNodeDistance(fromNode, toNode)
+                + Point.distance(network.getNode(toNode), to);
+    }
+
+    @Override
+    public void prepare(Point[] points, int count) {
+        int[] nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = network.getNearestNode(points[i]);
+        }
+        if (containsAll(nodes)) {
+            return;
+        }
+        double[] table = new double[count * count];
+        hierarchy.distances(nodes, count, nodes, count, table);
+        synchronized (cache) {
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < count; j++) {
+                    cache.put(key(nodes[i], nodes[j]), table[i * count + j]);
+                }
+            }
+        }
+    }
+
+    private boolean containsAll(int[] nodes) {
+        synchronized (cache) {
+            for (int from : nodes) {
+                for (int to : nodes) {
+                    if (!cache.containsKey(key(from, to))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private double getNodeDistance(int from, int to) {
+        long key = key(from, to);
+        synchronized (cache) {
+            Double distance = cache.get(key);
+            if (distance != null) {
+                return distance;
+            }
+        }
+        double distance = hierarchy.distance(from, to);
+        synchronized (cache) {
+            cache.put(key, distance);
+        }
+        return distance;
+    }
+
+    private static long key(int from, int to) {
+        return ((long) from << 32) | (to & 0xffffffffL);
+    }
+}
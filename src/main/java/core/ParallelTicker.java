@@ -0,0 +1,112 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the decide phase of all taxis concurrently on a fork-join pool at the start of every tick.
+ * It has to be added to the simulator before the taxis, so the taxis apply their decisions afterwards
+ * in their own ticks, sequentially and in the order in which they were registered.
+ * Because no taxi sees the decisions of another taxi before it applies its own,
+ * a parallel run gives the same results as a sequential one.
+ * <p>
+ * The decide phase has two steps. First every taxi reads its inbox and collects the requests it bids on.
+ * Then the bids of all taxis are evaluated as one batch, so the route searches of a taxi with many requests are spread over all threads.
+ */
+final class ParallelTicker implements TickListener {
+    private static final int TAXIS_PER_TASK = 32;
+    private static final int BIDS_PER_TASK = 4;
+
+    private final ForkJoinPool pool;
+    private final List<Taxi> taxis;
+    private final ThreadLocal<RouteSolver> routeSolvers;
+    private int[] bidOffsets;
+    private int[] bidTaxis;
+    private double[] bidRouteLengths;
+
+    ParallelTicker(SimulationSettings settings, DistanceMetric distanceMetric) {
+        this.pool = new ForkJoinPool(settings.threads);
+        this.taxis = new ArrayList<>();
+        this.routeSolvers = ThreadLocal.withInitial(() -> new RouteSolver(distanceMetric, settings.maxExactStops, settings.localSearchBudget));
+        this.bidOffsets = new int[1];
+        this.bidTaxis = new int[0];
+        this.bidRouteLengths = new double[0];
+    }
+
+    void add(Taxi taxi) {
+        taxis.add(taxi);
+        bidOffsets = new int[taxis.size() + 1];
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public void tick(@NotNull TimeLapse time) {
+        pool.invoke(new RangeTask(0, taxis.size(), TAXIS_PER_TASK, i -> taxis.get(i).prepareDecision(time)));
+
+        // Number the bids of all taxis in taxi order
+        for (int i = 0; i < taxis.size(); i++) {
+            bidOffsets[i + 1] = bidOffsets[i] + taxis.get(i).getBidCount();
+        }
+        int bidCount = bidOffsets[taxis.size()];
+        if (bidTaxis.length < bidCount) {
+            bidTaxis = new int[bidCount * 2];
+            bidRouteLengths = new double[bidCount * 2];
+        }
+        for (int i = 0; i < taxis.size(); i++) {
+            Arrays.fill(bidTaxis, bidOffsets[i], bidOffsets[i + 1], i);
+        }
+
+        pool.invoke(new RangeTask(0, bidCount, BIDS_PER_TASK, bid -> {
+            int taxi = bidTaxis[bid];
+            bidRouteLengths[bid] = taxis.get(taxi).evaluateBid(bid - bidOffsets[taxi], routeSolvers.get());
+        }));
+
+        for (int i = 0; i < taxis.size(); i++) {
+            taxis.get(i).completeDecision(bidRouteLengths, bidOffsets[i]);
+        }
+    }
+
+    @Override
+    public void afterTick(@NotNull TimeLapse timeLapse) {
+    }
+
+    /**
+     * Run an action for a range of indices, split in halves until the range is small enough.
+     */
+    private static final class RangeTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final IntConsumer action;
+
+        RangeTask(int from, int to, int grain, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, grain, action), new RangeTask(middle, to, grain, action));
+            }
+        }
+    }
+}
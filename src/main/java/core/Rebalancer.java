@@ -0,0 +1,232 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Repositions the idle taxis centrally every few simulated minutes, instead of letting every idle taxi follow the field in every tick.
+ * The map is divided in {@link #ZONES_PER_SIDE} by {@link #ZONES_PER_SIDE} zones and the idle taxis are divided over the zones
+ * in proportion to the demand the field predicts for the coming interval. The taxis that move are found by solving a transportation
+ * problem from the zones with too many idle taxis to the zones with too few, with the distances between the zone centres as costs.
+ * A moving taxi drives to the centre of its new zone and the other idle taxis stay where they are,
+ * so the planning only depends on the number of zones and idle taxis cost nothing between rounds.
+ */
+final class Rebalancer implements TickListener {
+    private static final int ZONES_PER_SIDE = 8;
+    private static final int ZONES = ZONES_PER_SIDE * ZONES_PER_SIDE;
+
+    private final DiscreteField df;
+    private final FleetState fleet;
+    private final long interval;
+    private final long activeFrom;
+    private final Point[] centres;
+
+    /**
+     * Create a rebalancer that runs every given number of milliseconds.
+     * A run resumed from a checkpoint has already done the rounds before the checkpoint, so rounds before the given time are skipped.
+     */
+    Rebalancer(DiscreteField df, FleetState fleet, long interval, long activeFrom) {
+        this.df = df;
+        this.fleet = fleet;
+        this.interval = interval;
+        this.activeFrom = activeFrom;
+        this.centres = new Point[ZONES];
+        for (int zone = 0; zone < ZONES; zone++) {
+            centres[zone] = df.getZoneCentre(zone, ZONES_PER_SIDE, ZONES_PER_SIDE);
+        }
+    }
+
+    @Override
+    public void tick(@NotNull TimeLapse time) {
+        if (time.getStartTime() >= activeFrom && time.getStartTime() % interval < time.getTickLength()) {
+            rebalance(time.getStartTime());
+        }
+    }
+
+    @Override
+    public void afterTick(@NotNull TimeLapse time) {
+    }
+
+    /**
+     * Give idle taxis in zones with too many idle taxis a target in a zone with too few.
+     * A taxi that is still driving to the target of an earlier round counts for the zone of that target and keeps it.
+     */
+    private void rebalance(long time) {
+        double[] demand = df.getZoneDemand(time, time + interval, ZONES_PER_SIDE, ZONES_PER_SIDE);
+        double totalDemand = Arrays.stream(demand).sum();
+
+        int[] supply = new int[ZONES];
+        List<List<Taxi>> movable = new ArrayList<>();
+        for (int zone = 0; zone < ZONES; zone++) {
+            movable.add(new ArrayList<>());
+        }
+        int idle = 0;
+        for (int id = 0; id < fleet.size(); id++) {
+            Taxi taxi = fleet.getTaxi(id);
+            if (!taxi.canDriveIdle()) {
+                continue;
+            }
+            Point target = taxi.getIdleTarget();
+            int zone = df.getZone(target != null ? target : fleet.getPublishedPosition(id), ZONES_PER_SIDE, ZONES_PER_SIDE);
+            supply[zone]++;
+            if (target == null) {
+                movable.get(zone).add(taxi);
+            }
+            idle++;
+        }
+        if (idle == 0 || totalDemand <= 0) {
+            return;
+        }
+
+        int[] wanted = apportion(idle, demand, totalDemand);
+        int[] surplus = new int[ZONES];
+        int[] deficit = new int[ZONES];
+        for (int zone = 0; zone < ZONES; zone++) {
+            surplus[zone] = Math.min(movable.get(zone).size(), Math.max(0, supply[zone] - wanted[zone]));
+            deficit[zone] = Math.max(0, wanted[zone] - supply[zone]);
+        }
+        double[][] costs = new double[ZONES][ZONES];
+        for (int from = 0; from < ZONES; from++) {
+            for (int to = 0; to < ZONES; to++) {
+                costs[from][to] = Point.distance(centres[from], centres[to]);
+            }
+        }
+        int[][] flows = transport(surplus, deficit, costs);
+
+        for (int from = 0; from < ZONES; from++) {
+            List<Taxi> taxis = movable.get(from);
+            for (int to = 0; to < ZONES; to++) {
+                if (flows[from][to] == 0) {
+                    continue;
+                }
+                final Point centre = centres[to];
+                // The taxis closest to the new zone go there
+                taxis.sort(Comparator.comparingDouble(t -> Point.distance(fleet.getPublishedPosition(t.getId()), centre)));
+                for (int i = 0; i < flows[from][to]; i++) {
+                    taxis.remove(0).setIdleTarget(centre);
+                }
+            }
+        }
+    }
+
+    /**
+     * Divide the given number of taxis over the zones in proportion to the given demand, rounding by largest remainder.
+     */
+    private static int[] apportion(int taxis, double[] demand, double totalDemand) {
+        int[] wanted = new int[demand.length];
+        double[] remainders = new double[demand.length];
+        int assigned = 0;
+        for (int zone = 0; zone < demand.length; zone++) {
+            double share = taxis * demand[zone] / totalDemand;
+            wanted[zone] = (int) Math.floor(share);
+            remainders[zone] = share - wanted[zone];
+            assigned += wanted[zone];
+        }
+        while (assigned < taxis) {
+            int best = 0;
+            for (int zone = 1; zone < demand.length; zone++) {
+                if (remainders[zone] > remainders[best]) {
+                    best = zone;
+                }
+            }
+            wanted[best]++;
+            remainders[best] = -1;
+            assigned++;
+        }
+        return wanted;
+    }
+
+    /**
+     * Solve the transportation problem from the given supplies to the given demands with the given costs per unit,
+     * with successive shortest paths on the residual network. The number of units that are moved is the smaller total.
+     *
+     * @return The number of units moved between every pair of zones.
+     */
+    private static int[][] transport(int[] supply, int[] demand, double[][] costs) {
+        int zones = supply.length;
+        // Nodes: 0 is the source, 1..zones the supplying zones, zones+1..2*zones the demanding zones and 2*zones+1 the sink
+        int nodes = 2 * zones + 2;
+        int source = 0;
+        int sink = nodes - 1;
+        int[][] capacity = new int[nodes][nodes];
+        double[][] cost = new double[nodes][nodes];
+        for (int zone = 0; zone < zones; zone++) {
+            capacity[source][1 + zone] = supply[zone];
+            capacity[1 + zones + zone][sink] = demand[zone];
+            for (int to = 0; to < zones; to++) {
+                if (supply[zone] > 0 && demand[to] > 0) {
+                    capacity[1 + zone][1 + zones + to] = Integer.MAX_VALUE;
+                    cost[1 + zone][1 + zones + to] = costs[zone][to];
+                    cost[1 + zones + to][1 + zone] = -costs[zone][to];
+                }
+            }
+        }
+
+        int[][] flows = new int[zones][zones];
+        double[] potential = new double[nodes];
+        double[] distance = new double[nodes];
+        int[] previous = new int[nodes];
+        boolean[] done = new boolean[nodes];
+        while (true) {
+            // Dijkstra with reduced costs, which are never negative on the residual network
+            Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            Arrays.fill(done, false);
+            distance[source] = 0;
+            for (int round = 0; round < nodes; round++) {
+                int node = -1;
+                for (int i = 0; i < nodes; i++) {
+                    if (!done[i] && distance[i] < Double.POSITIVE_INFINITY && (node < 0 || distance[i] < distance[node])) {
+                        node = i;
+                    }
+                }
+                if (node < 0) {
+                    break;
+                }
+                done[node] = true;
+                for (int next = 0; next < nodes; next++) {
+                    if (!done[next] && capacity[node][next] > 0) {
+                        double reduced = distance[node] + cost[node][next] + potential[node] - potential[next];
+                        if (reduced < distance[next]) {
+                            distance[next] = reduced;
+                            previous[next] = node;
+                        }
+                    }
+                }
+            }
+            if (distance[sink] == Double.POSITIVE_INFINITY) {
+                return flows;
+            }
+            for (int i = 0; i < nodes; i++) {
+                if (distance[i] < Double.POSITIVE_INFINITY) {
+                    potential[i] += distance[i];
+                }
+            }
+
+            int amount = Integer.MAX_VALUE;
+            for (int node = sink; node != source; node = previous[node]) {
+                amount = Math.min(amount, capacity[previous[node]][node]);
+            }
+            for (int node = sink; node != source; node = previous[node]) {
+                int from = previous[node];
+                if (capacity[from][node] != Integer.MAX_VALUE) {
+                    capacity[from][node] -= amount;
+                }
+                if (capacity[node][from] != Integer.MAX_VALUE) {
+                    capacity[node][from] += amount;
+                }
+                if (from >= 1 && from <= zones && node > zones && node < sink) {
+                    flows[from - 1][node - zones - 1] += amount;
+                } else if (node >= 1 && node <= zones && from > zones && from < sink) {
+                    flows[node - 1][from - zones - 1] -= amount;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package core;
+
+import core.statistics.StatisticsDTO;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Store of the statistics of finished runs, so a run with the same settings is not simulated again.
+ * A run is deterministic given its settings, the seed, the historical trips, the road graph and the code,
+ * so the statistics are stored gzipped under a SHA-256 hash of all of these.
+ * Settings that do not change the outcome, such as the number of threads, are left out of the hash.
+ * Runs that write or resume from checkpoints are not cached, as their files are part of their outcome.
+ */
+final class ResultCache {
+    static final String DIRECTORY = "stats/cache";
+    private static final Set<String> IGNORED_SETTINGS = new HashSet<>(Arrays.asList("showGUI", "threads", "checkpointFile", "checkpointInterval", "resumeFile", "force", "roadGraphFile"));
+
+    @Nullable
+    private static String buildId;
+
+    private final File directory;
+    private final String dataFingerprint;
+
+    ResultCache(String directory, String dataFingerprint) {
+        this.directory = new File(directory);
+        this.dataFingerprint = dataFingerprint;
+    }
+
+    /**
+     * Whether runs with the given settings can be cached.
+     */
+    static boolean isCacheable(SimulationSettings settings) {
+        return !settings.showGUI && settings.checkpointFile == null && settings.resumeFile == null;
+    }
+
+    /**
+     * The stored statistics of a run with the given settings, or null if there are none.
+     */
+    @Nullable
+    StatisticsDTO get(SimulationSettings settings, long seed) {
+        File file = getFile(settings, seed);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return StatisticsDTO.load(file.getPath());
+        } catch (IOException e) {
+            // A damaged entry is simulated again and overwritten
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Store the statistics of a run with the given settings. They are written to a temporary file that is then renamed,
+     * so a reader or another writer of the same entry never sees a partly written file.
+     */
+    void put(SimulationSettings settings, long seed, StatisticsDTO stats) throws IOException {
+        // Parallel runs of a sweep may create the directory at the same time
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File file = getFile(settings, seed);
+        Path tempFile = Files.createTempFile(directory.toPath(), file.getName() + ".", ".tmp.gz");
+        try {
+            stats.write(tempFile.toString());
+            Files.move(tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    File getFile(SimulationSettings settings, long seed) {
+        return new File(directory, getKey(settings, seed) + ".json.gz");
+    }
+
+    /**
+     * The hash of everything that determines the outcome of a run with the given settings.
+     */
+    String getKey(SimulationSettings settings, long seed) {
+        MessageDigest digest = sha256();
+        update(digest, "run=" + getRunKey(settings, seed));
+        update(digest, "data=" + dataFingerprint);
+        update(digest, "build=" + getBuildId());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * The hash of the settings, the seed and the road graph of a run, which tells apart the runs of one sweep:
+     * runs with the same run key and the same data and code have the same outcome.
+     */
+    static String getRunKey(SimulationSettings settings, long seed) {
+        MessageDigest digest = sha256();
+        List<Field> fields = Arrays.stream(SimulationSettings.class.getDeclaredFields())
+                .filter(f -> !Modifier.isStatic(f.getModifiers()) && !IGNORED_SETTINGS.contains(f.getName()))
+                .sorted(Comparator.comparing(Field::getName))
+                .collect(Collectors.toList());
+        try {
+            for (Field field : fields) {
+                field.setAccessible(true);
+                update(digest, field.getName() + "=" + field.get(settings));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, "seed=" + seed);
+        if (settings.roadGraphFile != null) {
+            // The graph counts by its content, not by its file name
+            update(digest, "graph=" + hashFile(Paths.get(settings.roadGraphFile)));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Identify the code of this build: the hash of the jar, or of all class files when running from a directory.
+     */
+    static synchronized String getBuildId() {
+        if (buildId == null) {
+            try {
+                Path location = Paths.get(ResultCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                if (Files.isDirectory(location)) {
+                    MessageDigest digest = sha256();
+                    try (Stream<Path> files = Files.walk(location)) {
+                        for (Path file : files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList())) {
+                            update(digest, location.relativize(file).toString().replace(File.separatorChar, '/'));
+                            digest.update(Files.readAllBytes(file));
+                        }
+                    }
+                    buildId = toHex(digest.digest());
+                } else {
+                    buildId = hashFile(location);
+                }
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                // Without a build identifier nothing can be reused safely, so every run gets its own key
+                e.printStackTrace();
+                buildId = "unknown-" + System.nanoTime();
+            }
+        }
+        return buildId;
+    }
+
+    private static String hashFile(Path file) {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            return "missing";
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
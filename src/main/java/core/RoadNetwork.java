@@ -0,0 +1,350 @@
+package core;
+
+import com.github.rinde.rinsim.geom.LengthData;
+import com.github.rinde.rinsim.geom.Point;
+import com.github.rinde.rinsim.geom.TableGraph;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Directed road network loaded from a .dot file as generated by scripts/osm2dot.py.
+ * Node positions are given by a p="longitude,-latitude" attribute and are converted to road model coordinates.
+ * Only the largest strongly connected component is kept, so every node can reach every other node.
+ * Edges are stored in compressed adjacency arrays and nodes in a uniform grid for nearest node lookups.
+ */
+final class RoadNetwork {
+    private static final Pattern NODE_PATTERN = Pattern.compile("^\\s*\"?([\\w.]+)\"?\\s*\\[.*\\bp\\s*=\\s*\"([^\"]+)\"");
+    private static final Pattern EDGE_PATTERN = Pattern.compile("^\\s*\"?([\\w.]+)\"?\\s*(->|--)\\s*\"?([\\w.]+)\"?");
+
+    private final Point[] nodes;
+    private final Map<Point, Integer> nodeIndices;
+    private final int[] edgeFirst;
+    private final int[] edgeTarget;
+    private final double[] edgeLength;
+    private final double gridMinX;
+    private final double gridMinY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[] cellFirst;
+    private final int[] cellNodes;
+
+    private RoadNetwork(Point[] nodes, int[] edgeFirst, int[] edgeTarget) {
+        this.nodes = nodes;
+        this.edgeFirst = edgeFirst;
+        this.edgeTarget = edgeTarget;
+        this.edgeLength = new double[edgeTarget.length];
+        this.nodeIndices = new HashMap<>();
+        for (int v = 0; v < nodes.length; v++) {
+            nodeIndices.put(nodes[v], v);
+            for (int e = edgeFirst[v]; e < edgeFirst[v + 1]; e++) {
+                edgeLength[e] = Point.distance(nodes[v], nodes[edgeTarget[e]]);
+            }
+        }
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point p : nodes) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        this.gridMinX = minX;
+        this.gridMinY = minY;
+        // Roughly one node per grid cell
+        this.cellSize = Math.max(1e-6, Math.sqrt((maxX - minX) * (maxY - minY) / Math.max(1, nodes.length)));
+        this.columns = (int) ((maxX - minX) / cellSize) + 1;
+        this.rows = (int) ((maxY - minY) / cellSize) + 1;
+        this.cellFirst = new int[columns * rows + 1];
+        this.cellNodes = new int[nodes.length];
+        for (Point p : nodes) {
+            cellFirst[getCell(p) + 1]++;
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellFirst[c + 1] += cellFirst[c];
+        }
+        int[] cellFill = Arrays.copyOf(cellFirst, cellFirst.length);
+        for (int v = 0; v < nodes.length; v++) {
+            cellNodes[cellFill[getCell(nodes[v])]++] = v;
+        }
+    }
+
+    /**
+     * Load the road network from the given .dot file.
+     */
+    static RoadNetwork load(String fileName) throws IOException {
+        Map<String, Point> positions = new HashMap<>();
+        List<String[]> edges = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher edge = EDGE_PATTERN.matcher(line);
+                if (edge.find()) {
+                    edges.add(new String[]{edge.group(1), edge.group(3)});
+                    if (edge.group(2).equals("--")) {
+                        edges.add(new String[]{edge.group(3), edge.group(1)});
+                    }
+                    continue;
+                }
+                Matcher node = NODE_PATTERN.matcher(line);
+                if (node.find()) {
+                    String[] coordinates = node.group(2).split(",");
+                    positions.put(node.group(1), Helper.convertToPointInBoundaries(
+                            Double.parseDouble(coordinates[0].trim()),
+                            Double.parseDouble(coordinates[1].trim())));
+                }
+            }
+        }
+
+        // Nodes at the same position are merged, self loops and duplicate edges are dropped
+        Map<Point, Integer> indices = new HashMap<>();
+        List<Point> points = new ArrayList<>();
+        for (Point p : positions.values()) {
+            if (!indices.containsKey(p)) {
+                indices.put(p, points.size());
+                points.add(p);
+            }
+        }
+        Set<Long> seen = new HashSet<>();
+        List<int[]> edgeList = new ArrayList<>();
+        for (String[] edge : edges) {
+            Point from = positions.get(edge[0]);
+            Point to = positions.get(edge[1]);
+            if (from == null || to == null || from.equals(to)) {
+                continue;
+            }
+            int u = indices.get(from);
+            int v = indices.get(to);
+            if (seen.add(((long) u << 32) | v)) {
+                edgeList.add(new int[]{u, v});
+            }
+        }
+        if (points.isEmpty() || edgeList.isEmpty()) {
+            throw new IOException("No road network found in " + fileName);
+        }
+        return largestComponent(points.toArray(new Point[0]), edgeList);
+    }
+
+    /**
+     * Build a network of the largest strongly connected component of the given graph, using Kosaraju's algorithm.
+     */
+    private static RoadNetwork largestComponent(Point[] points, List<int[]> edgeList) {
+        int n = points.length;
+        int[][] forward = toAdjacency(n, edgeList, false);
+        int[][] backward = toAdjacency(n, edgeList, true);
+
+        // First pass: order nodes by finishing time of a depth first search
+        int[] order = new int[n];
+        int orderSize = 0;
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n];
+        int[] position = new int[n];
+        for (int root = 0; root < n; root++) {
+            if (visited[root]) {
+                continue;
+            }
+            int depth = 0;
+            stack[depth] = root;
+            position[depth] = forward[0][root];
+            visited[root] = true;
+            while (depth >= 0) {
+                int v = stack[depth];
+                if (position[depth] < forward[0][v + 1]) {
+                    int w = forward[1][position[depth]++];
+                    if (!visited[w]) {
+                        visited[w] = true;
+                        depth++;
+                        stack[depth] = w;
+                        position[depth] = forward[0][w];
+                    }
+                } else {
+                    order[orderSize++] = v;
+                    depth--;
+                }
+            }
+        }
+
+        // Second pass: collect components on the reversed graph
+        int[] component = new int[n];
+        Arrays.fill(component, -1);
+        int componentCount = 0;
+        int bestComponent = 0;
+        int bestSize = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            int root = order[i];
+            if (component[root] >= 0) {
+                continue;
+            }
+            int size = 0;
+            int top = 0;
+            stack[top++] = root;
+            component[root] = componentCount;
+            while (top > 0) {
+                int v = stack[--top];
+                size++;
+                for (int e = backward[0][v]; e < backward[0][v + 1]; e++) {
+                    int w = backward[1][e];
+                    if (component[w] < 0) {
+                        component[w] = componentCount;
+                        stack[top++] = w;
+                    }
+                }
+            }
+            if (size > bestSize) {
+                bestSize = size;
+                bestComponent = componentCount;
+            }
+            componentCount++;
+        }
+
+        int[] newIndex = new int[n];
+        Point[] nodes = new Point[bestSize];
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            if (component[v] == bestComponent) {
+                newIndex[v] = count;
+                nodes[count++] = points[v];
+            } else {
+                newIndex[v] = -1;
+            }
+        }
+        List<int[]> componentEdges = new ArrayList<>();
+        for (int[] edge : edgeList) {
+            if (newIndex[edge[0]] >= 0 && newIndex[edge[1]] >= 0) {
+                componentEdges.add(new int[]{newIndex[edge[0]], newIndex[edge[1]]});
+            }
+        }
+        int[][] adjacency = toAdjacency(bestSize, componentEdges, false);
+        return new RoadNetwork(nodes, adjacency[0], adjacency[1]);
+    }
+
+    /**
+     * Convert an edge list to compressed adjacency arrays: the first array holds the offsets, the second one the targets.
+     */
+    private static int[][] toAdjacency(int n, List<int[]> edgeList, boolean reversed) {
+        int[] first = new int[n + 1];
+        int[] target = new int[edgeList.size()];
+        for (int[] edge : edgeList) {
+            first[(reversed ? edge[1] : edge[0]) + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            first[v + 1] += first[v];
+        }
+        int[] fill = Arrays.copyOf(first, n);
+        for (int[] edge : edgeList) {
+            int from = reversed ? edge[1] : edge[0];
+            target[fill[from]++] = reversed ? edge[0] : edge[1];
+        }
+        return new int[][]{first, target};
+    }
+
+    int getNodeCount() {
+        return nodes.length;
+    }
+
+    Point getNode(int node) {
+        return nodes[node];
+    }
+
+    int getFirstEdge(int node) {
+        return edgeFirst[node];
+    }
+
+    int getEdgeTarget(int edge) {
+        return edgeTarget[edge];
+    }
+
+    double getEdgeLength(int edge) {
+        return edgeLength[edge];
+    }
+
+    /**
+     * Hash of all node positions and edges, used to detect stale preprocessed data.
+     */
+    long getFingerprint() {
+        long hash = nodes.length;
+        for (Point p : nodes) {
+            hash = 31 * hash + Double.doubleToLongBits(p.x);
+            hash = 31 * hash + Double.doubleToLongBits(p.y);
+        }
+        for (int v = 0; v < nodes.length; v++) {
+            for (int e = edgeFirst[v]; e < edgeFirst[v + 1]; e++) {
+                hash = 31 * hash + ((long) v << 32 | edgeTarget[e]);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Index of the node closest to the given point.
+     */
+    int getNearestNode(Point p) {
+        Integer index = nodeIndices.get(p);
+        if (index != null) {
+            return index;
+        }
+        int cx = Math.max(0, Math.min(columns - 1, (int) ((p.x - gridMinX) / cellSize)));
+        int cy = Math.max(0, Math.min(rows - 1, (int) ((p.y - gridMinY) / cellSize)));
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int ring = 0; ring < Math.max(columns, rows); ring++) {
+            for (int x = cx - ring; x <= cx + ring; x++) {
+                for (int y = cy - ring; y <= cy + ring; y++) {
+                    if (x < 0 || y < 0 || x >= columns || y >= rows || Math.max(Math.abs(x - cx), Math.abs(y - cy)) != ring) {
+                        continue;
+                    }
+                    int cell = y * columns + x;
+                    for (int i = cellFirst[cell]; i < cellFirst[cell + 1]; i++) {
+                        double distance = Point.distance(p, nodes[cellNodes[i]]);
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = cellNodes[i];
+                        }
+                    }
+                }
+            }
+            // Nodes outside this ring are at least ring * cellSize away
+            if (best >= 0 && bestDistance <= ring * cellSize) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Position of the node closest to the given point.
+     */
+    Point snap(Point p) {
+        return nodes[getNearestNode(p)];
+    }
+
+    /**
+     * Convert this network to a graph for the road model.
+     */
+    TableGraph<LengthData> toGraph() {
+        TableGraph<LengthData> graph = new TableGraph<>();
+        for (int v = 0; v < nodes.length; v++) {
+            for (int e = edgeFirst[v]; e < edgeFirst[v + 1]; e++) {
+                graph.addConnection(nodes[v], nodes[edgeTarget[e]], LengthData.create(edgeLength[e]));
+            }
+        }
+        return graph;
+    }
+
+    private int getCell(Point p) {
+        int x = Math.min(columns - 1, (int) ((p.x - gridMinX) / cellSize));
+        int y = Math.min(rows - 1, (int) ((p.y - gridMinY) / cellSize));
+        return y * columns + x;
+    }
+}
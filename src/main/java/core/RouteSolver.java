@@ -0,0 +1,478 @@
+package core;
+
+import com.github.rinde.rinsim.geom.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Solver for the shortest pickup and delivery route of a single taxi.
+ * Routes of up to a given number of stops are solved exactly with a dynamic program over (visited stops, last stop) states.
+ * Longer routes, as driven by pooling vehicles, are built by cheapest insertion and then improved by a local search
+ * with relocate, exchange and 2-opt moves, which stops after a given number of evaluated moves.
+ * The local search is bounded by moves rather than by wall time, so a route does not depend on the load of the machine
+ * and a run gives the same result with any number of threads, which the result cache relies on.
+ * A delivery stop can only be visited after the pickup of the same customer, unless that customer has already been picked up.
+ * Distances are given by a {@link DistanceMetric}, which need not be symmetric.
+ * All buffers are reused between calls, so a solver should not be shared between taxis.
+ * <p>
+ * Next to the full solver it offers cheap incremental updates of an existing route:
+ * cheapest insertion of a new customer and removal of a customer that is no longer served.
+ */
+final class RouteSolver {
+    static final int DEFAULT_MAX_EXACT_STOPS = 10;
+    static final int DEFAULT_LOCAL_SEARCH_BUDGET = 5000;
+    // The exact solver takes memory and time exponential in the number of stops
+    static final int EXACT_STOPS_LIMIT = 16;
+    private static final int START = -1;
+    private static final int NONE = -2;
+    private static final int RELOCATE = 0;
+    private static final int EXCHANGE = 1;
+    private static final int TWO_OPT = 2;
+    private static final double EPSILON = 1e-9;
+
+    private final DistanceMetric metric;
+    private final int maxExactStops;
+    private final int localSearchBudget;
+    private int stopCount;
+    private Point[] stops;
+    private int[] pickupOf;
+    private int[] deliveryOf;
+    private double[] distances;
+    private double[] startDistances;
+    private int[] order;
+    private int[] candidate;
+    private int[] position;
+    private double[] cost;
+    private int[] previous;
+
+    RouteSolver(DistanceMetric metric, int maxExactStops, int localSearchBudget) {
+        this.metric = metric;
+        this.maxExactStops = maxExactStops;
+        this.localSearchBudget = localSearchBudget;
+        this.stopCount = 0;
+        this.stops = new Point[0];
+        this.pickupOf = new int[0];
+        this.deliveryOf = new int[0];
+        this.distances = new double[0];
+        this.startDistances = new double[0];
+        this.order = new int[0];
+        this.candidate = new int[0];
+        this.position = new int[0];
+        this.cost = new double[0];
+        this.previous = new int[0];
+    }
+
+    /**
+     * Find the shortest route from the given start position that serves all given customers.
+     */
+    ArrayList<Point> getShortestRoute(Point start, List<Customer> customers, Collection<Customer> pickedUpCustomers) {
+        ArrayList<Point> route = new ArrayList<>();
+        if (customers.isEmpty()) {
+            return route;
+        }
+        prepare(start, customers, pickedUpCustomers);
+        solve();
+        for (int i = 0; i < stopCount; i++) {
+            route.add(stops[order[i]]);
+        }
+        return route;
+    }
+
+    /**
+     * Calculate the length of the shortest route from the given start position that serves all given customers.
+     * Unlike {@link #getShortestRoute(Point, List, Collection)} this does not build the route itself.
+     */
+    double getShortestRouteLength(Point start, List<Customer> customers, Collection<Customer> pickedUpCustomers) {
+        if (customers.isEmpty()) {
+            return 0;
+        }
+        prepare(start, customers, pickedUpCustomers);
+        return solve();
+    }
+
+    /**
+     * Insert the pickup and delivery of the given customer at the cheapest positions in the given route.
+     * All pairs of positions with the pickup before the delivery are tried, which takes O(n^2) time.
+     */
+    void insertCustomer(Point start, List<Point> route, Customer customer) {
+        Point pickup = customer.getPickupLocation();
+        Point delivery = customer.getDeliveryLocation();
+        int size = route.size();
+        Point[] points = route.toArray(new Point[size + 3]);
+        points[size] = start;
+        points[size + 1] = pickup;
+        points[size + 2] = delivery;
+        metric.prepare(points, size + 3);
+
+        double bestCost = Double.MAX_VALUE;
+        int bestPickupIndex = 0;
+        int bestDeliveryIndex = 0;
+        for (int i = 0; i <= size; i++) {
+            Point beforePickup = i == 0 ? start : route.get(i - 1);
+            Point afterPickup = i == size ? null : route.get(i);
+            for (int j = i; j <= size; j++) {
+                double cost;
+                if (j == i) {
+                    // Delivery directly after the pickup
+                    cost = metric.distance(beforePickup, pickup) + metric.distance(pickup, delivery)
+                            + legLength(delivery, afterPickup) - legLength(beforePickup, afterPickup);
+                } else {
+                    Point beforeDelivery = route.get(j - 1);
+                    Point afterDelivery = j == size ? null : route.get(j);
+                    cost = metric.distance(beforePickup, pickup) + legLength(pickup, afterPickup) - legLength(beforePickup, afterPickup)
+                            + metric.distance(beforeDelivery, delivery) + legLength(delivery, afterDelivery) - legLength(beforeDelivery, afterDelivery);
+                }
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestPickupIndex = i;
+                    bestDeliveryIndex = j;
+                }
+            }
+        }
+        // Insert the delivery first so the pickup index stays valid
+        route.add(bestDeliveryIndex, delivery);
+        route.add(bestPickupIndex, pickup);
+    }
+
+    /**
+     * Remove the stops of the given customer from the given route, which serves the remaining customers and the given customer.
+     * When several stops share a location, a stop at the location of the customer may belong to another customer,
+     * so only a pair of stops after which the route still serves all remaining customers is removed.
+     *
+     * @return Whether such a pair was found. Otherwise the route is left unchanged and has to be planned again.
+     */
+    static boolean removeCustomer(List<Point> route, Customer customer, List<Customer> remainingCustomers, Collection<Customer> pickedUpCustomers) {
+        Point delivery = customer.getDeliveryLocation();
+        Point pickup = customer.getPickupLocation();
+        boolean pickedUp = pickedUpCustomers.contains(customer);
+        for (int d = route.size() - 1; d >= 0; d--) {
+            if (!route.get(d).equals(delivery)) {
+                continue;
+            }
+            route.remove(d);
+            if (pickedUp) {
+                if (servesAll(route, remainingCustomers, pickedUpCustomers)) {
+                    return true;
+                }
+            } else {
+                for (int p = d - 1; p >= 0; p--) {
+                    if (!route.get(p).equals(pickup)) {
+                        continue;
+                    }
+                    route.remove(p);
+                    if (servesAll(route, remainingCustomers, pickedUpCustomers)) {
+                        return true;
+                    }
+                    route.add(p, pickup);
+                }
+            }
+            route.add(d, delivery);
+        }
+        return false;
+    }
+
+    /**
+     * Check whether driving the given route delivers all given customers, stopping like a taxi does:
+     * at every stop the first carried customer with a delivery there is delivered and the first waiting customer with a pickup there is picked up.
+     */
+    static boolean servesAll(List<Point> route, List<Customer> customers, Collection<Customer> pickedUpCustomers) {
+        List<Customer> waiting = new ArrayList<>();
+        List<Customer> carried = new ArrayList<>();
+        for (Customer customer : customers) {
+            (pickedUpCustomers.contains(customer) ? carried : waiting).add(customer);
+        }
+        for (Point stop : route) {
+            for (int i = 0; i < carried.size(); i++) {
+                if (carried.get(i).getDeliveryLocation().equals(stop)) {
+                    carried.remove(i);
+                    break;
+                }
+            }
+            for (int i = 0; i < waiting.size(); i++) {
+                if (waiting.get(i).getPickupLocation().equals(stop)) {
+                    carried.add(waiting.remove(i));
+                    break;
+                }
+            }
+        }
+        return waiting.isEmpty() && carried.isEmpty();
+    }
+
+    /**
+     * Distance of the leg from a stop to the next one, or zero when there is no next stop.
+     */
+    private double legLength(Point from, Point to) {
+        return to == null ? 0 : metric.distance(from, to);
+    }
+
+    /**
+     * Fill the stop list, the precedence constraints and the distance matrix for the given customers.
+     */
+    private void prepare(Point start, List<Customer> customers, Collection<Customer> pickedUpCustomers) {
+        int count = 0;
+        for (Customer customer : customers) {
+            count += pickedUpCustomers.contains(customer) ? 1 : 2;
+        }
+        ensureCapacity(count);
+        this.stopCount = count;
+
+        int index = 0;
+        for (Customer customer : customers) {
+            if (pickedUpCustomers.contains(customer)) {
+                stops[index] = customer.getDeliveryLocation();
+                pickupOf[index] = NONE;
+                deliveryOf[index] = NONE;
+                index++;
+            } else {
+                stops[index] = customer.getPickupLocation();
+                pickupOf[index] = NONE;
+                deliveryOf[index] = index + 1;
+                stops[index + 1] = customer.getDeliveryLocation();
+                pickupOf[index + 1] = index;
+                deliveryOf[index + 1] = NONE;
+                index += 2;
+            }
+        }
+
+        // The start position is stored after the stops so the metric can prepare all distances at once
+        stops[stopCount] = start;
+        metric.prepare(stops, stopCount + 1);
+        for (int i = 0; i < stopCount; i++) {
+            startDistances[i] = metric.distance(start, stops[i]);
+            for (int j = 0; j < stopCount; j++) {
+                distances[i * stopCount + j] = metric.distance(stops[i], stops[j]);
+            }
+        }
+    }
+
+    /**
+     * Store the best route found in the order buffer and return its length.
+     */
+    private double solve() {
+        return stopCount <= maxExactStops ? solveExact() : solveHeuristic();
+    }
+
+    /**
+     * Run the dynamic program over (visited stops, last stop) states.
+     */
+    private double solveExact() {
+        int states = (1 << stopCount) * stopCount;
+        Arrays.fill(cost, 0, states, Double.MAX_VALUE);
+
+        for (int i = 0; i < stopCount; i++) {
+            if (pickupOf[i] == NONE) {
+                cost[(1 << i) * stopCount + i] = startDistances[i];
+                previous[(1 << i) * stopCount + i] = START;
+            }
+        }
+
+        for (int mask = 1; mask < (1 << stopCount); mask++) {
+            for (int last = 0; last < stopCount; last++) {
+                double current = cost[mask * stopCount + last];
+                if (current == Double.MAX_VALUE) {
+                    continue;
+                }
+                for (int next = 0; next < stopCount; next++) {
+                    if ((mask & (1 << next)) != 0 || (pickupOf[next] != NONE && (mask & (1 << pickupOf[next])) == 0)) {
+                        continue;
+                    }
+                    int nextState = (mask | (1 << next)) * stopCount + next;
+                    double candidateCost = current + distances[last * stopCount + next];
+                    if (candidateCost < cost[nextState]) {
+                        cost[nextState] = candidateCost;
+                        previous[nextState] = last;
+                    }
+                }
+            }
+        }
+
+        int mask = (1 << stopCount) - 1;
+        int last = 0;
+        for (int i = 1; i < stopCount; i++) {
+            if (cost[mask * stopCount + i] < cost[mask * stopCount + last]) {
+                last = i;
+            }
+        }
+        double length = cost[mask * stopCount + last];
+        for (int i = stopCount - 1; i >= 0; i--) {
+            order[i] = last;
+            int before = previous[mask * stopCount + last];
+            mask &= ~(1 << last);
+            last = before;
+        }
+        return length;
+    }
+
+    /**
+     * Build a route by cheapest insertion and improve it with a local search until no move improves it or the budget is used up.
+     */
+    private double solveHeuristic() {
+        int size = 0;
+        for (int s = 0; s < stopCount; s++) {
+            if (pickupOf[s] != NONE) {
+                // Deliveries of waiting customers are inserted together with their pickup
+                continue;
+            }
+            size = deliveryOf[s] == NONE ? insertStop(size, s) : insertPair(size, s, deliveryOf[s]);
+        }
+
+        double best = routeLength(order);
+        int evaluations = 0;
+        boolean improved = true;
+        while (improved && evaluations < localSearchBudget) {
+            improved = false;
+            for (int i = 0; i < stopCount && evaluations < localSearchBudget; i++) {
+                for (int j = 0; j < stopCount && evaluations < localSearchBudget; j++) {
+                    for (int move = RELOCATE; move <= TWO_OPT; move++) {
+                        if (i == j || (move != RELOCATE && j < i)) {
+                            continue;
+                        }
+                        applyMove(move, i, j);
+                        evaluations++;
+                        if (isFeasible(candidate)) {
+                            double length = routeLength(candidate);
+                            if (length < best - EPSILON) {
+                                int[] temp = order;
+                                order = candidate;
+                                candidate = temp;
+                                best = length;
+                                improved = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Insert a single stop at the cheapest position of the first size stops of the order, and return the new size.
+     */
+    private int insertStop(int size, int stop) {
+        double bestCost = Double.MAX_VALUE;
+        int bestIndex = 0;
+        for (int k = 0; k <= size; k++) {
+            int before = k == 0 ? START : order[k - 1];
+            int after = k == size ? NONE : order[k];
+            double cost = leg(before, stop) + leg(stop, after) - leg(before, after);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestIndex = k;
+            }
+        }
+        insertAt(order, size, bestIndex, stop);
+        return size + 1;
+    }
+
+    /**
+     * Insert a pickup and its delivery at the cheapest positions of the first size stops of the order, and return the new size.
+     */
+    private int insertPair(int size, int pickup, int delivery) {
+        double bestCost = Double.MAX_VALUE;
+        int bestPickupIndex = 0;
+        int bestDeliveryIndex = 0;
+        for (int i = 0; i <= size; i++) {
+            int beforePickup = i == 0 ? START : order[i - 1];
+            int afterPickup = i == size ? NONE : order[i];
+            for (int j = i; j <= size; j++) {
+                double cost;
+                if (j == i) {
+                    cost = leg(beforePickup, pickup) + leg(pickup, delivery) + leg(delivery, afterPickup) - leg(beforePickup, afterPickup);
+                } else {
+                    int beforeDelivery = order[j - 1];
+                    int afterDelivery = j == size ? NONE : order[j];
+                    cost = leg(beforePickup, pickup) + leg(pickup, afterPickup) - leg(beforePickup, afterPickup)
+                            + leg(beforeDelivery, delivery) + leg(delivery, afterDelivery) - leg(beforeDelivery, afterDelivery);
+                }
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestPickupIndex = i;
+                    bestDeliveryIndex = j;
+                }
+            }
+        }
+        insertAt(order, size, bestDeliveryIndex, delivery);
+        insertAt(order, size + 1, bestPickupIndex, pickup);
+        return size + 2;
+    }
+
+    private static void insertAt(int[] array, int size, int index, int value) {
+        System.arraycopy(array, index, array, index + 1, size - index);
+        array[index] = value;
+    }
+
+    /**
+     * Fill the candidate buffer with the order after applying the given move to positions i and j.
+     */
+    private void applyMove(int move, int i, int j) {
+        System.arraycopy(order, 0, candidate, 0, stopCount);
+        if (move == RELOCATE) {
+            int stop = candidate[i];
+            if (i < j) {
+                System.arraycopy(candidate, i + 1, candidate, i, j - i);
+            } else {
+                System.arraycopy(candidate, j, candidate, j + 1, i - j);
+            }
+            candidate[j] = stop;
+        } else if (move == EXCHANGE) {
+            candidate[i] = order[j];
+            candidate[j] = order[i];
+        } else {
+            for (int k = 0; k <= j - i; k++) {
+                candidate[i + k] = order[j - k];
+            }
+        }
+    }
+
+    private boolean isFeasible(int[] route) {
+        for (int k = 0; k < stopCount; k++) {
+            position[route[k]] = k;
+        }
+        for (int s = 0; s < stopCount; s++) {
+            if (pickupOf[s] != NONE && position[pickupOf[s]] > position[s]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double routeLength(int[] route) {
+        double length = startDistances[route[0]];
+        for (int k = 1; k < stopCount; k++) {
+            length += distances[route[k - 1] * stopCount + route[k]];
+        }
+        return length;
+    }
+
+    /**
+     * Distance between two stops, where the start position is {@link #START} and a missing next stop is {@link #NONE}.
+     */
+    private double leg(int from, int to) {
+        if (to == NONE) {
+            return 0;
+        }
+        return from == START ? startDistances[to] : distances[from * stopCount + to];
+    }
+
+    private void ensureCapacity(int count) {
+        if (stops.length <= count) {
+            stops = new Point[count + 1];
+            pickupOf = new int[count];
+            deliveryOf = new int[count];
+            distances = new double[count * count];
+            startDistances = new double[count];
+            order = new int[count];
+            candidate = new int[count];
+            position = new int[count];
+        }
+        int states = (1 << Math.min(count, maxExactStops)) * Math.min(count, maxExactStops);
+        if (count <= maxExactStops && cost.length < states) {
+            cost = new double[states];
+            previous = new int[states];
+        }
+    }
+}
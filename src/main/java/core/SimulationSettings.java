@@ -0,0 +1,148 @@
+package core;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings of a single simulation run, parsed from the command line options of {@link MasProject}.
+ */
+final class SimulationSettings {
+    static final double DEFAULT_SAMPLE = 0.02;
+    static final long DEFAULT_TICK_LENGTH = 1000L;
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+    static final String DEFAULT_SERIES_BUCKETS = "10,60,900";
+    // Part of the heap ceiling of a bounded run for the samples of the statistics
+    private static final int SAMPLE_SHARE = 8;
+    private static final int BYTES_PER_SAMPLE = 48;
+    private static final int MIN_LIMIT = 1000;
+
+    final boolean showGUI;
+    final boolean useField;
+    final boolean useTrading;
+    final boolean incrementalRouting;
+    final double sample;
+    final int matrixStep;
+    final int minPerFrame;
+    final double taxiInfluenceRange;
+    final int fieldRange;
+    final double idleTravelLimit;
+    final double bidRange;
+    final int maxConcurrentPickups;
+    final int maxExactStops;
+    final int localSearchBudget;
+    final int threads;
+    final int fieldUpdateInterval;
+    final long tickLength;
+    final String roadGraphFile;
+    final String checkpointFile;
+    final long checkpointInterval;
+    final String resumeFile;
+    final long rebalanceInterval;
+    final int days;
+    final LocalDateTime stopTime;
+    final long heapCeiling;
+    final int sampleLimit;
+    final int tradeProfitLimit;
+    final List<Long> seriesBuckets;
+    final boolean force;
+    final int histogramDigits;
+    final boolean compressStats;
+
+    SimulationSettings(CommandLine cmd) throws ParseException {
+        showGUI = cmd.hasOption("gui");
+        useField = cmd.hasOption("field");
+        useTrading = cmd.hasOption("trade");
+        incrementalRouting = cmd.hasOption("incremental");
+        sample = cmd.hasOption("sample") ? (double) cmd.getParsedOptionValue("sample") : DEFAULT_SAMPLE;
+        matrixStep = cmd.hasOption("mtxstep") ? ((Number) cmd.getParsedOptionValue("mtxstep")).intValue() : 0;
+        minPerFrame = cmd.hasOption("resolution") ? ((Number) cmd.getParsedOptionValue("resolution")).intValue() : 1;
+        taxiInfluenceRange = cmd.hasOption("influence") ? (double) cmd.getParsedOptionValue("influence") : DiscreteField.DEFAULT_TAXI_INFLUENCE_RANGE;
+        fieldRange = cmd.hasOption("frange") ? ((Number) cmd.getParsedOptionValue("frange")).intValue() : Taxi.DEFAULT_FIELD_RANGE;
+        idleTravelLimit = cmd.hasOption("idlelimit") ? (double) cmd.getParsedOptionValue("idlelimit") : Double.MAX_VALUE;
+        bidRange = cmd.hasOption("bidrange") ? ((Number) cmd.getParsedOptionValue("bidrange")).doubleValue() : Double.MAX_VALUE;
+        maxConcurrentPickups = cmd.hasOption("pooling") ? ((Number) cmd.getParsedOptionValue("pooling")).intValue() : Taxi.DEFAULT_MAX_CONCURRENT_PICKUPS;
+        maxExactStops = cmd.hasOption("exactstops") ? Math.max(0, Math.min(RouteSolver.EXACT_STOPS_LIMIT, ((Number) cmd.getParsedOptionValue("exactstops")).intValue())) : RouteSolver.DEFAULT_MAX_EXACT_STOPS;
+        localSearchBudget = cmd.hasOption("searchbudget") ? Math.max(0, ((Number) cmd.getParsedOptionValue("searchbudget")).intValue()) : RouteSolver.DEFAULT_LOCAL_SEARCH_BUDGET;
+        threads = cmd.hasOption("threads") ? ((Number) cmd.getParsedOptionValue("threads")).intValue() : 1;
+        fieldUpdateInterval = cmd.hasOption("fieldinterval") ? Math.max(1, ((Number) cmd.getParsedOptionValue("fieldinterval")).intValue()) : 1;
+        tickLength = cmd.hasOption("ticklength") ? Math.max(1, Math.round(((Number) cmd.getParsedOptionValue("ticklength")).doubleValue() * 1000)) : DEFAULT_TICK_LENGTH;
+        roadGraphFile = cmd.getOptionValue("graph");
+        checkpointFile = cmd.getOptionValue("checkpoint");
+        checkpointInterval = (cmd.hasOption("checkpointinterval") ? Math.max(1, ((Number) cmd.getParsedOptionValue("checkpointinterval")).intValue()) : DEFAULT_CHECKPOINT_INTERVAL) * 60 * 1000L;
+        resumeFile = cmd.getOptionValue("resume");
+        rebalanceInterval = cmd.hasOption("rebalance") ? Math.max(1, ((Number) cmd.getParsedOptionValue("rebalance")).intValue()) * 60 * 1000L : 0;
+        if (rebalanceInterval > 0 && !useField) {
+            throw new ParseException("Rebalancing needs the field");
+        }
+        days = cmd.hasOption("days") ? Math.max(1, ((Number) cmd.getParsedOptionValue("days")).intValue()) : (int) Duration.between(Helper.START_TIME, Helper.STOP_TIME).toDays();
+        stopTime = cmd.hasOption("hours") ? Helper.START_TIME.plusHours(Math.max(1, ((Number) cmd.getParsedOptionValue("hours")).intValue())) : Helper.START_TIME.plusDays(days);
+        heapCeiling = cmd.hasOption("maxheap") ? Math.max(1, ((Number) cmd.getParsedOptionValue("maxheap")).longValue()) * 1024 * 1024 : 0;
+        if (heapCeiling > 0) {
+            // A bounded run keeps a sample of the values of every statistic within a share of the ceiling
+            sampleLimit = (int) Math.max(MIN_LIMIT, Math.min(Integer.MAX_VALUE, heapCeiling / SAMPLE_SHARE / BYTES_PER_SAMPLE));
+            tradeProfitLimit = Math.max(1, sampleLimit / Math.max(1, (int) Math.ceil(MasProject.NUM_TAXIS * sample)));
+        } else {
+            sampleLimit = Integer.MAX_VALUE;
+            tradeProfitLimit = Integer.MAX_VALUE;
+        }
+        seriesBuckets = new ArrayList<>();
+        try {
+            for (String seconds : cmd.getOptionValue("buckets", DEFAULT_SERIES_BUCKETS).split(",")) {
+                seriesBuckets.add(Math.max(1, Math.round(Double.parseDouble(seconds.trim()) * 1000)));
+            }
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bucket lengths are seconds separated by commas: " + cmd.getOptionValue("buckets"));
+        }
+        Collections.sort(seriesBuckets);
+        force = cmd.hasOption("force");
+        compressStats = cmd.hasOption("gzip");
+        histogramDigits = cmd.hasOption("histograms") ? Math.max(1, Math.min(5, ((Number) cmd.getParsedOptionValue("histograms")).intValue())) : 0;
+    }
+
+    /**
+     * The command line options of a simulation run.
+     */
+    static Options createOptions() {
+        Options options = new Options();
+
+        options.addOption(new Option("g", "gui", false, "Run with GUI"));
+        options.addOption(new Option("f", "field", false, "Enable field"));
+        options.addOption(new Option("t", "trade", false, "Enable trading"));
+        options.addOption(new Option("n", "incremental", false, "Incremental route updates"));
+        options.addOption(Option.builder("s").longOpt("sample").desc("Data sampling factor").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("m").longOpt("mtxstep").desc("Matrix Subdivision Step").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("r").longOpt("resolution").desc("Minutes per time frame").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("i").longOpt("influence").desc("Taxi repulsion influence range").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("F").longOpt("frange").desc("Range for field analysis").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("l").longOpt("idlelimit").desc("Distance limit for idle driving").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("G").longOpt("graph").desc("Road graph file (.dot)").hasArg().build());
+        options.addOption(Option.builder("b").longOpt("bidrange").desc("Maximum pickup distance for bidding").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("E").longOpt("exactstops").desc("Maximum number of route stops that are planned exactly").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("L").longOpt("searchbudget").desc("Moves evaluated by the local search of longer routes").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("T").longOpt("threads").desc("Threads for the taxi decide phase").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("k").longOpt("ticklength").desc("Tick length in seconds").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("u").longOpt("fieldinterval").desc("Ticks between field updates of idle taxis").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("p").longOpt("pooling").desc("Maximum concurrent riders per taxi").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("K").longOpt("checkpoint").desc("Checkpoint file prefix").hasArg().build());
+        options.addOption(Option.builder("I").longOpt("checkpointinterval").desc("Simulated minutes between checkpoints").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("R").longOpt("resume").desc("Checkpoint file to resume from").hasArg().build());
+        options.addOption(Option.builder("B").longOpt("rebalance").desc("Simulated minutes between rebalancing rounds of idle taxis").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("D").longOpt("days").desc("Simulated days").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("H").longOpt("hours").desc("Simulated hours, instead of whole days").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("M").longOpt("maxheap").desc("Heap ceiling in MB that bounds the memory of long runs").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("S").longOpt("buckets").desc("Seconds per bucket of the time series, comma separated (default " + DEFAULT_SERIES_BUCKETS + ")").hasArg().build());
+        options.addOption(Option.builder("h").longOpt("histograms").desc("Keep histograms with the given significant digits instead of all waiting times and overheads").hasArg().type(Number.class).build());
+        options.addOption(new Option("z", "gzip", false, "Save the statistics gzipped"));
+        options.addOption(new Option("x", "force", false, "Simulate again even if the result of the same run is cached"));
+
+        return options;
+    }
+}
@@ -0,0 +1,163 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import core.statistics.StatisticsDTO;
+import org.apache.commons.cli.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Soak test of the bounded memory of long runs.
+ * Runs a simulation of seven simulated days with a heap ceiling and measures the used heap after a garbage collection
+ * every simulated hour. After a warm-up day the heap has to stay flat: the highest measurement of the last day
+ * may not be more than {@link #TOLERANCE} above the highest measurement of the first day after the warm-up,
+ * and no measurement may be above the heap ceiling. The run also has to simulate all its days and deliver customers,
+ * and the samples of the statistics may not be larger than the limits that the ceiling sets.
+ * It exits with status 1 when one of these checks fails.
+ *
+ * @author Evert Etienne & Olivier Kamers
+ */
+public final class SoakRunner {
+    private static final int DAYS = 7;
+    private static final int WARM_UP_DAYS = 1;
+    private static final int HOURS_PER_DAY = 24;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final double TOLERANCE = 0.1;
+
+    private SoakRunner() {
+    }
+
+    /**
+     * Starts the soak test.
+     *
+     * @param args The arguments of the simulation, as for {@link MasProject}.
+     *             Without -D the run takes seven days, and without -M the heap ceiling is the maximum heap.
+     */
+    public static void main(String[] args) {
+        Options options = SimulationSettings.createOptions();
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+
+        try {
+            List<String> runArgs = new ArrayList<>(Arrays.asList(args));
+            CommandLine cmd = parser.parse(options, args);
+            if (!cmd.hasOption("days")) {
+                runArgs.addAll(Arrays.asList("-D", Integer.toString(DAYS)));
+            }
+            if (!cmd.hasOption("maxheap")) {
+                runArgs.addAll(Arrays.asList("-M", Long.toString(Runtime.getRuntime().maxMemory() / 1024 / 1024)));
+            }
+            String[] soakArgs = runArgs.toArray(new String[0]);
+            SimulationSettings settings = new SimulationSettings(parser.parse(options, soakArgs));
+            if (settings.showGUI || settings.days <= WARM_UP_DAYS + 1) {
+                throw new ParseException("A soak test runs without GUI for more than " + (WARM_UP_DAYS + 1) + " days");
+            }
+
+            List<Long> usedHeap = new ArrayList<>();
+            StatisticsDTO stats = MasProject.run(soakArgs, settings, MasProject.loadField(settings),
+                    new TripPrefetcher(new MySQLDataLoader(), MasProject.TRIP_PREFETCH_DURATION), new HeapProbe(usedHeap));
+            System.out.println("Simulated " + stats.simulationTime / HOUR + " hours with " + stats.totalDeliveries + " deliveries");
+
+            boolean passed = isComplete(stats, settings) & isBounded(stats, settings) & isFlat(usedHeap, settings.heapCeiling);
+            System.out.println(passed ? "PASSED" : "FAILED");
+            if (!passed) {
+                System.exit(1);
+            }
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("MAS-soak", options);
+
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Soak test failed: " + e.getMessage());
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Check that the run simulated all its days and delivered customers.
+     */
+    private static boolean isComplete(StatisticsDTO stats, SimulationSettings settings) {
+        if (stats.simulationTime < settings.days * HOURS_PER_DAY * HOUR) {
+            System.out.println("FAILED: the run stopped after " + stats.simulationTime / HOUR + " of " + settings.days * HOURS_PER_DAY + " hours");
+            return false;
+        }
+        if (stats.totalDeliveries == 0) {
+            System.out.println("FAILED: no customers were delivered");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check that the samples of the statistics stayed within the limits of the heap ceiling.
+     */
+    private static boolean isBounded(StatisticsDTO stats, SimulationSettings settings) {
+        long tradeProfitLimit = (long) settings.tradeProfitLimit * stats.totalVehicles;
+        if (stats.pickupWaitingTimes.size() > settings.sampleLimit || stats.travelTimeOverhead.size() > settings.sampleLimit
+                || stats.numberOfRequests.size() > settings.sampleLimit || stats.tradeProfits.size() > tradeProfitLimit) {
+            System.out.println("FAILED: the statistics keep more samples than the heap ceiling allows");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the hourly heap measurements.
+     */
+    private static boolean isFlat(List<Long> usedHeap, long heapCeiling) {
+        int warmedUp = WARM_UP_DAYS * HOURS_PER_DAY;
+        if (usedHeap.size() < warmedUp + 2 * HOURS_PER_DAY) {
+            System.out.println("FAILED: only " + usedHeap.size() + " hours were simulated");
+            return false;
+        }
+        long baseline = usedHeap.subList(warmedUp, warmedUp + HOURS_PER_DAY).stream().mapToLong(Long::longValue).max().getAsLong();
+        long last = usedHeap.subList(usedHeap.size() - HOURS_PER_DAY, usedHeap.size()).stream().mapToLong(Long::longValue).max().getAsLong();
+        long highest = usedHeap.stream().mapToLong(Long::longValue).max().getAsLong();
+        System.out.println("Used heap after warm-up " + baseline / 1024 / 1024 + " MB, on the last day " + last / 1024 / 1024
+                + " MB, at most " + highest / 1024 / 1024 + " MB of " + heapCeiling / 1024 / 1024 + " MB");
+        if (highest > heapCeiling) {
+            System.out.println("FAILED: the used heap exceeded the ceiling");
+            return false;
+        }
+        if (last > baseline * (1 + TOLERANCE)) {
+            System.out.println("FAILED: the used heap grew after the warm-up");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Measures the used heap after a garbage collection at the end of every simulated hour.
+     */
+    private static final class HeapProbe implements TickListener {
+        private final MemoryMXBean memory;
+        private final List<Long> usedHeap;
+
+        HeapProbe(List<Long> usedHeap) {
+            this.memory = ManagementFactory.getMemoryMXBean();
+            this.usedHeap = usedHeap;
+        }
+
+        @Override
+        public void tick(@NotNull TimeLapse time) {
+        }
+
+        @Override
+        public void afterTick(@NotNull TimeLapse time) {
+            if (time.getEndTime() % HOUR < time.getTickLength()) {
+                memory.gc();
+                usedHeap.add(memory.getHeapMemoryUsage().getUsed());
+                System.out.println("Hour " + usedHeap.size() + ": " + usedHeap.get(usedHeap.size() - 1) / 1024 / 1024 + " MB used");
+            }
+        }
+    }
+}
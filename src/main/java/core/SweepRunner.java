@@ -0,0 +1,223 @@
+package core;
+
+import core.statistics.StatisticsDTO;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless runner for a sweep over a grid of simulation options.
+ * The grid is read from a text file with one line per dimension, which lists the alternative arguments separated by |.
+ * An empty alternative leaves the option out. Lines starting with # are comments. For example
+ * <pre>
+ * -f |
+ * -t |
+ * -m 100 -r 1 | -m 200 -r 2
+ * -s 0.01
+ * </pre>
+ * runs 8 simulations.
+ * <p>
+ * The historical trips and every distinct field are loaded once and shared by all runs,
+ * which run at the same time on a fixed number of threads. Each run writes its statistics to its own file.
+ * Runs of which the result is in the {@link ResultCache} are not simulated again, so an extended grid only simulates the new runs,
+ * and runs that only differ in settings that do not change the outcome are simulated once and written to the file of each.
+ *
+ * @author Evert Etienne & Olivier Kamers
+ */
+public final class SweepRunner {
+    private SweepRunner() {
+    }
+
+    /**
+     * Starts the sweep.
+     *
+     * @param args The arguments for the sweep
+     *             usage: MAS-sweep [options] grid-file
+     *             -j,--jobs <arg>     Simulations to run at the same time
+     *             -o,--output <arg>   Directory for the statistics files
+     *             -x,--force          Simulate again even if the result of a run is cached
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+
+        options.addOption(Option.builder("j").longOpt("jobs").desc("Simulations to run at the same time").hasArg().type(Number.class).build());
+        options.addOption(Option.builder("o").longOpt("output").desc("Directory for the statistics files").hasArg().build());
+        options.addOption(new Option("x", "force", false, "Simulate again even if the result of a run is cached"));
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            if (cmd.getArgs().length != 1) {
+                throw new ParseException("Missing grid file");
+            }
+            int jobs = cmd.hasOption("jobs") ? ((Number) cmd.getParsedOptionValue("jobs")).intValue() : Runtime.getRuntime().availableProcessors();
+            String output = cmd.getOptionValue("output", "stats");
+
+            sweep(readGrid(cmd.getArgs()[0]), jobs, output, cmd.hasOption("force"));
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("MAS-sweep [options] grid-file", options);
+
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Could not read grid file: " + e.getMessage());
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read the grid file and return the arguments of every combination of alternatives.
+     */
+    static List<String[]> readGrid(String fileName) throws IOException {
+        List<List<String>> runs = new ArrayList<>();
+        runs.add(new ArrayList<>());
+        for (String line : Files.readAllLines(Paths.get(fileName))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<List<String>> combinations = new ArrayList<>();
+            for (List<String> run : runs) {
+                for (String alternative : line.split("\\|", -1)) {
+                    List<String> runArgs = new ArrayList<>(run);
+                    if (!alternative.trim().isEmpty()) {
+                        runArgs.addAll(Arrays.asList(alternative.trim().split("\\s+")));
+                    }
+                    combinations.add(runArgs);
+                }
+            }
+            runs = combinations;
+        }
+        List<String[]> result = new ArrayList<>();
+        for (List<String> run : runs) {
+            result.add(run.toArray(new String[0]));
+        }
+        return result;
+    }
+
+    private static void sweep(List<String[]> runArgs, int jobs, String output, boolean force) throws ParseException {
+        // Parse all runs first, so a mistake in the grid does not show up halfway through the sweep
+        Options options = SimulationSettings.createOptions();
+        CommandLineParser parser = new DefaultParser();
+        List<SimulationSettings> runSettings = new ArrayList<>();
+        for (String[] args : runArgs) {
+            SimulationSettings settings = new SimulationSettings(parser.parse(options, args));
+            if (settings.showGUI) {
+                throw new ParseException("A sweep runs without GUI: " + Arrays.toString(args));
+            }
+            runSettings.add(settings);
+        }
+
+        long sweepId = System.currentTimeMillis();
+        MySQLDataLoader loader = new MySQLDataLoader();
+        String fingerprint = loader.getFingerprint();
+        ResultCache cache = fingerprint != null ? new ResultCache(ResultCache.DIRECTORY, fingerprint) : null;
+        if (cache == null) {
+            System.out.println("The trip data could not be identified, so the results are not cached");
+        }
+        // Runs that only differ in settings that do not change the outcome, such as the threads, are simulated once.
+        // Runs that write checkpoints are simulated each, as their files are part of their outcome.
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < runSettings.size(); i++) {
+            SimulationSettings settings = runSettings.get(i);
+            String key = ResultCache.isCacheable(settings) ? ResultCache.getRunKey(settings, MasProject.SAMPLE_SEED) : "run " + i;
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        List<List<Integer>> pending = new ArrayList<>();
+        for (List<Integer> group : groups.values()) {
+            SimulationSettings settings = runSettings.get(group.get(0));
+            boolean forced = force || group.stream().anyMatch(i -> runSettings.get(i).force);
+            StatisticsDTO cached = cache != null && !forced && ResultCache.isCacheable(settings) ? cache.get(settings, MasProject.SAMPLE_SEED) : null;
+            if (cached != null) {
+                for (int i : group) {
+                    cached.setArgs(runArgs.get(i));
+                    cached.save(getOutputFile(output, sweepId, i, settings));
+                    System.out.println("Cached run " + i + " " + Arrays.toString(runArgs.get(i)));
+                }
+            } else {
+                pending.add(group);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        LocalDateTime stopTime = pending.stream().map(group -> runSettings.get(group.get(0)).stopTime).max(LocalDateTime::compareTo).orElse(Helper.STOP_TIME);
+        TripData trips = TripData.load(loader, Helper.START_TIME, stopTime);
+        System.out.println("Loaded " + trips.size() + " trips for " + pending.size() + " distinct runs");
+
+        // The field data only depends on the matrix step, the resolution and the horizon, the influence range is set per run
+        Map<List<Integer>, DiscreteField> fields = new HashMap<>();
+        for (List<Integer> group : pending) {
+            SimulationSettings settings = runSettings.get(group.get(0));
+            if (settings.useField) {
+                fields.computeIfAbsent(Arrays.asList(settings.matrixStep, settings.minPerFrame, (int) Duration.between(Helper.START_TIME, settings.stopTime).toHours()),
+                        key -> new FieldGenerator(key.get(0), key.get(1), settings.stopTime).load(DiscreteField.DEFAULT_TAXI_INFLUENCE_RANGE));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<?>> results = new ArrayList<>();
+        for (List<Integer> group : pending) {
+            String[] args = runArgs.get(group.get(0));
+            SimulationSettings settings = runSettings.get(group.get(0));
+            DiscreteField field = settings.useField
+                    ? fields.get(Arrays.asList(settings.matrixStep, settings.minPerFrame, (int) Duration.between(Helper.START_TIME, settings.stopTime).toHours())).withTaxiInfluenceRange(settings.taxiInfluenceRange)
+                    : null;
+            results.add(executor.submit(() -> {
+                StatisticsDTO stats = MasProject.run(args, settings, field, trips);
+                if (cache != null && ResultCache.isCacheable(settings)) {
+                    try {
+                        cache.put(settings, MasProject.SAMPLE_SEED, stats);
+                    } catch (IOException e) {
+                        System.out.println("Could not cache run " + group.get(0) + ": " + e.getMessage());
+                    }
+                }
+                // Every run of the group gets its own file with its own arguments
+                for (int i : group) {
+                    stats.setArgs(runArgs.get(i));
+                    stats.write(getOutputFile(output, sweepId, i, runSettings.get(i)));
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        for (int j = 0; j < results.size(); j++) {
+            List<Integer> group = pending.get(j);
+            try {
+                results.get(j).get();
+                for (int i : group) {
+                    System.out.println("Finished run " + i + " " + Arrays.toString(runArgs.get(i)));
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                for (int i : group) {
+                    System.out.println("Run " + i + " " + Arrays.toString(runArgs.get(i)) + " failed");
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String getOutputFile(String output, long sweepId, int run, SimulationSettings settings) {
+        return output + "/sweep_" + sweepId + "_" + run + (settings.compressStats ? ".json.gz" : ".json");
+    }
+}
@@ -19,6 +19,7 @@ import com.github.rinde.rinsim.core.model.comm.CommDevice;
 import com.github.rinde.rinsim.core.model.comm.CommDeviceBuilder;
 import com.github.rinde.rinsim.core.model.comm.CommUser;
 import com.github.rinde.rinsim.core.model.comm.Message;
+import com.github.rinde.rinsim.core.model.comm.MessageContents;
 import com.github.rinde.rinsim.core.model.pdp.PDPModel;
 import com.github.rinde.rinsim.core.model.pdp.Parcel;
 import com.github.rinde.rinsim.core.model.pdp.Vehicle;
@@ -30,50 +31,91 @@ import com.github.rinde.rinsim.geom.Point;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import core.messages.*;
+import core.statistics.Reservoir;
+import core.statistics.TrackedVehicle;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.jetbrains.annotations.NotNull;
 
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
  * Implementation of a Taxi agent.
  * It can pick up multiple customers and calculate the most efficient route to take.
- * When idle, the Taxi uses historical knowledge and messages from neighboring vehicles to move to a more optimal waiting location.
+ * When idle, the Taxi uses historical knowledge and the positions of neighboring vehicles to move to a more optimal waiting location.
  *
  * @author Evert Etienne & Olivier Kamers
  */
-public class Taxi extends Vehicle implements CommUser {
+public class Taxi extends Vehicle implements CommUser, TrackedVehicle {
     public static final int DEFAULT_FIELD_RANGE = 5;
     private static final double MINIMUM_TRADE_PROFIT = 5.0;
-    private static final int TRADE_DEAL_WAIT_TICKS = 2;
+    // Time in ms a taxi waits for the answer to a trade deal, and the ticks that answer takes at least
+    private static final long TRADE_DEAL_TIMEOUT = 3000;
+    private static final int TRADE_DEAL_TICKS = 3;
+    private static final long NO_TRADE_DEAL = Long.MIN_VALUE / 2;
     private static final double TRADE_RANGE_MIN = 2;
     private static final double TRADE_RANGE_MAX = 2.5;
     private static final double SPEED = 15;
     private static final double FIELD_VECTOR_FACTOR = 0.5;
-    private static final int MAX_CONCURRENT_PICKUPS = 3;
+    static final int DEFAULT_MAX_CONCURRENT_PICKUPS = 3;
+    private static final int MAX_ROUTE_CACHE_SIZE = 64;
+    private static final int REOPTIMISE_INTERVAL = 4;
     private final int id;
-    private Vector2D fieldVector;
     private ArrayList<Customer> currentCustomers;
     private ArrayList<Customer> pickedUpCustomers;
+    private int trackerIndex;
     private ArrayList<Double> tradeProfits;
+    private final Reservoir tradeProfitSample;
     private ArrayList<Point> route;
     private double remainingRouteLength;
     private Optional<CommDevice> commDevice;
-    private TaxiState state;
     private DiscreteField df;
-    private ArrayList<MoveProgress> idleMoveProgress;
-    private int ticksSinceTradeDeal;
+    private long tradeDealTime;
+    private boolean tradeDealWaiting;
     private double dealCapacity;
     private boolean useTrading;
     private int fieldRange;
     private double idleTravelDistance;
     private double idleTravelLimit;
-
-    Taxi(int id, Point startPosition, int capacity, DiscreteField df, boolean useTrading, int fieldRange, double idleTravelLimit) {
+    private double bidRange;
+    private int maxConcurrentPickups;
+    private RouteSolver routeSolver;
+    private DistanceMetric distanceMetric;
+    private RoadNetwork roadNetwork;
+    private boolean incrementalRouting;
+    private int incrementalRouteChanges;
+    private int routeVersion;
+    private int routeCacheVersion;
+    private Point routeCachePosition;
+    private double cachedRemainingRouteLength;
+    private HashMap<Customer, Double> routeLengthWithCustomer;
+    private HashMap<Customer, Double> routeLengthWithoutCustomer;
+    private boolean decided;
+    private ImmutableList<Message> messages;
+    private Customer acceptedCustomer;
+    private ArrayList<Customer> bidCustomers;
+    private ArrayList<Double> bidRouteLengths;
+    private Vector2D idleFieldVector;
+    private boolean dormant;
+    private int fieldUpdateInterval;
+    private int idleTicks;
+    private final FleetState fleet;
+    private final TimerWheel timers;
+    private Point idleTarget;
+    private final MessageRecorder recorder;
+    private long activeFrom;
+    private boolean rebalancing;
+
+    Taxi(int id, Point startPosition, int capacity, DiscreteField df, SimulationSettings settings, RoadNetwork roadNetwork, DistanceMetric distanceMetric, FleetState fleet, TimerWheel timers, @Nullable MessageRecorder recorder) {
         super(VehicleDTO.builder()
                 .capacity(capacity)
                 .startPosition(startPosition)
@@ -81,124 +123,355 @@ public class Taxi extends Vehicle implements CommUser {
                 .build());
         this.currentCustomers = new ArrayList<>();
         this.pickedUpCustomers = new ArrayList<>();
-        this.idleMoveProgress = new ArrayList<>();
+        this.trackerIndex = -1;
         this.tradeProfits = new ArrayList<>();
+        this.tradeProfitSample = new Reservoir(settings.tradeProfitLimit, id);
         this.route = new ArrayList<>();
         this.remainingRouteLength = 0;
         this.id = id;
         this.df = df;
-        this.fieldVector = new Vector2D(0, 0);
-        setState(TaxiState.IDLE);
-        this.ticksSinceTradeDeal = TRADE_DEAL_WAIT_TICKS;
+        this.fleet = fleet;
+        fleet.add(this, id, startPosition, capacity);
+        this.timers = timers;
+        this.tradeDealTime = NO_TRADE_DEAL;
+        this.tradeDealWaiting = false;
         this.dealCapacity = 0;
-        this.useTrading = useTrading;
-        this.fieldRange = fieldRange;
+        this.useTrading = settings.useTrading;
+        this.fieldRange = settings.fieldRange;
         this.idleTravelDistance = 0;
-        this.idleTravelLimit = idleTravelLimit;
+        this.idleTravelLimit = settings.idleTravelLimit;
+        this.bidRange = settings.bidRange;
+        this.maxConcurrentPickups = settings.maxConcurrentPickups;
+        this.routeSolver = new RouteSolver(distanceMetric, settings.maxExactStops, settings.localSearchBudget);
+        this.distanceMetric = distanceMetric;
+        this.roadNetwork = roadNetwork;
+        this.incrementalRouting = settings.incrementalRouting;
+        this.incrementalRouteChanges = 0;
+        this.routeVersion = 0;
+        this.routeCacheVersion = -1;
+        this.cachedRemainingRouteLength = -1;
+        this.routeLengthWithCustomer = new HashMap<>();
+        this.routeLengthWithoutCustomer = new HashMap<>();
+        this.decided = false;
+        this.bidCustomers = new ArrayList<>();
+        this.bidRouteLengths = new ArrayList<>();
+        this.dormant = false;
+        this.fieldUpdateInterval = settings.fieldUpdateInterval;
+        this.idleTicks = id % fieldUpdateInterval;
+        this.recorder = recorder;
+        this.activeFrom = 0;
+        this.rebalancing = settings.rebalanceInterval > 0;
     }
 
     public ArrayList<Double> getTradeProfits() {
         return tradeProfits;
     }
 
-    ArrayList<MoveProgress> getIdleMoveProgress() {
-        return idleMoveProgress;
+    double getIdleMoveDistance() {
+        return fleet.getIdleDistance(id);
     }
 
-    private int getId() {
+    int getId() {
         return id;
     }
 
+    List<Customer> getPickedUpCustomers() {
+        return pickedUpCustomers;
+    }
+
+    @Override
+    public int getTrackerIndex() {
+        return trackerIndex;
+    }
+
+    @Override
+    public void setTrackerIndex(int index) {
+        this.trackerIndex = index;
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return !pickedUpCustomers.isEmpty();
+    }
+
     TaxiState getState() {
-        return state;
+        return fleet.getState(id);
     }
 
     private void setState(TaxiState state) {
-        this.state = state;
+        fleet.setState(id, state);
     }
 
     @Override
     public void afterTick(TimeLapse timeLapse) {
     }
 
-    @Override
-    protected void tickImpl(@NotNull TimeLapse time) {
-        final RoadModel rm = getRoadModel();
-        final PDPModel pm = getPDPModel();
+    /**
+     * Decide phase of a tick: read the inbox, handle the contract net and calculate the bids and the idle field vector.
+     * It only changes the state of this taxi and reads the shared models, which do not change until the taxis apply their decisions,
+     * so all taxis can decide concurrently. The resulting messages are sent in {@link #tickImpl(TimeLapse)}.
+     */
+    void decide(TimeLapse time) {
+        prepareDecision(time);
+        for (Customer customer : bidCustomers) {
+            bidRouteLengths.add(customer.getPosition().isPresent() ? getRouteLengthWithCustomer(customer) : Double.MAX_VALUE);
+        }
+        decided = true;
+    }
 
-        if (!time.hasTimeLeft()) {
+    /**
+     * First part of the decide phase, which does everything except calculating the route lengths for the bids.
+     * Those can be calculated independently with {@link #evaluateBid(int, RouteSolver)} and are passed to {@link #completeDecision(double[], int)}.
+     */
+    void prepareDecision(TimeLapse time) {
+        if (time.getStartTime() < activeFrom) {
+            bidCustomers.clear();
             return;
         }
 
-        ticksSinceTradeDeal++;
-
-        if (ticksSinceTradeDeal > TRADE_DEAL_WAIT_TICKS) {
+        tradeDealWaiting = !timers.hasPassed(tradeDealTime, TRADE_DEAL_TIMEOUT, TRADE_DEAL_TICKS, time.getStartTime());
+        if (!tradeDealWaiting) {
             dealCapacity = 0;
         }
 
-        ImmutableList<Message> messages = commDevice.get().getUnreadMessages();
+        acceptedCustomer = null;
+        bidCustomers.clear();
+        bidRouteLengths.clear();
+        idleFieldVector = null;
+
+        // A taxi without customers, messages or idle moves has nothing to do but publish its position
+        dormant = currentCustomers.isEmpty() && route.isEmpty() && !shouldDriveIdle() && commDevice.get().getUnreadCount() == 0;
+        if (dormant) {
+            messages = ImmutableList.of();
+            return;
+        }
+
+        messages = commDevice.get().getUnreadMessages();
 
         // Handle the contract net (deals, pickup, delivery) if needed
         if (shouldHandleContractNet()) {
             handleContractNet(messages);
         }
 
-        // Taxi has not finished its route yet
-        if (!route.isEmpty()) {
+        // Without a route the taxi does not move before its idle move, so the field vector can be calculated now
+        if (!rebalancing && route.isEmpty() && shouldDriveIdle() && shouldUpdateField()) {
+            idleFieldVector = df.getNextPosition(this, time.getStartTime(), fleet, fieldRange);
+        }
+
+        // The bids only read the route cache, so it has to be up to date before they are evaluated
+        if (!bidCustomers.isEmpty()) {
+            validateRouteCache();
+        }
+    }
+
+    int getBidCount() {
+        return bidCustomers.size();
+    }
+
+    /**
+     * Length of the shortest route serving the current customers and the customer of the given bid, calculated with the given solver
+     * unless it is in the route cache. It does not change this taxi, so the bids of all taxis can be evaluated concurrently;
+     * the calculated lengths are added to the cache by {@link #completeDecision(double[], int)}.
+     */
+    double evaluateBid(int index, RouteSolver solver) {
+        Customer customer = bidCustomers.get(index);
+        if (!customer.getPosition().isPresent()) {
+            return Double.MAX_VALUE;
+        }
+        Double length = routeLengthWithCustomer.get(customer);
+        if (length != null) {
+            return length;
+        }
+        ArrayList<Customer> customersWithThisCustomer = new ArrayList<>(currentCustomers);
+        customersWithThisCustomer.add(customer);
+        return solver.getShortestRouteLength(getPosition().get(), customersWithThisCustomer, pickedUpCustomers);
+    }
+
+    /**
+     * Finish the decide phase with the route lengths of the bids, which are stored in the given array starting at the given offset.
+     */
+    void completeDecision(double[] routeLengths, int offset) {
+        for (int i = 0; i < bidCustomers.size(); i++) {
+            double length = routeLengths[offset + i];
+            if (length != Double.MAX_VALUE) {
+                routeLengthWithCustomer.put(bidCustomers.get(i), length);
+            }
+            bidRouteLengths.add(length);
+        }
+        decided = true;
+    }
+
+    /**
+     * Apply phase of a tick: send the messages of the decide phase, drive, pick up and deliver customers and trade.
+     * The decide phase is run first if it was not already done by a {@link ParallelTicker}.
+     */
+    @Override
+    protected void tickImpl(@NotNull TimeLapse time) {
+        final RoadModel rm = getRoadModel();
+        final PDPModel pm = getPDPModel();
+
+        if (!time.hasTimeLeft()) {
+            return;
+        }
+
+        if (time.getStartTime() < activeFrom) {
+            // A restored taxi waits during the tick that restores its checkpoint
+            decided = false;
+            return;
+        }
+
+        if (!decided) {
+            decide(time);
+        }
+        decided = false;
+        if (dormant) {
+            updateFleetState();
+            return;
+        }
+        sendContractNetMessages();
+
+        // Taxi has not finished its route yet: with long ticks it can serve several stops in one tick
+        while (!route.isEmpty() && time.hasTimeLeft()) {
             Point target = route.get(0);
             rm.moveTo(this, target, time);
-            if (rm.getPosition(this).equals(target)) {
-                // We have reached our next target.
-                // If there are customers to be dropped off here, drop them
-                java.util.Optional<Customer> customerToDeliver = currentCustomers.stream()
-                        .filter(c -> c.getDeliveryLocation().equals(rm.getPosition(this)))
-                        .filter(c -> pm.containerContains(this, c))
-                        .findFirst();
-                if (customerToDeliver.isPresent()) {
-                    pm.deliver(this, customerToDeliver.get(), time);
-                    currentCustomers.remove(customerToDeliver.get());
-                    pickedUpCustomers.remove(customerToDeliver.get());
-                }
-                // If there are customers to be picked up here, pick them up
-                java.util.Optional<Customer> customerToPickup = currentCustomers.stream()
-                        .filter(c -> c.getPickupLocation().equals(rm.getPosition(this)))
-                        .filter(c -> !pm.containerContains(this, c) && rm.containsObject(c))
-                        .findFirst();
-                if (customerToPickup.isPresent()) {
-                    pm.pickup(this, customerToPickup.get(), time);
-                    customerToPickup.get().setPickupTime(time.getStartTime());
-                    pickedUpCustomers.add(customerToPickup.get());
-                }
-                route.remove(0);
-                if (route.isEmpty()) {
-                    setState(TaxiState.IDLE);
-                    idleTravelDistance = 0;
-                }
+            if (!rm.getPosition(this).equals(target)) {
+                break;
+            }
+            // We have reached our next target.
+            // If there are customers to be dropped off here, drop them
+            java.util.Optional<Customer> customerToDeliver = currentCustomers.stream()
+                    .filter(c -> c.getDeliveryLocation().equals(rm.getPosition(this)))
+                    .filter(c -> pm.containerContains(this, c))
+                    .findFirst();
+            if (customerToDeliver.isPresent()) {
+                pm.deliver(this, customerToDeliver.get(), time);
+                currentCustomers.remove(customerToDeliver.get());
+                pickedUpCustomers.remove(customerToDeliver.get());
+                routeChanged();
+            }
+            // If there are customers to be picked up here, pick them up
+            java.util.Optional<Customer> customerToPickup = currentCustomers.stream()
+                    .filter(c -> c.getPickupLocation().equals(rm.getPosition(this)))
+                    .filter(c -> !pm.containerContains(this, c) && rm.containsObject(c))
+                    .findFirst();
+            if (customerToPickup.isPresent()) {
+                pm.pickup(this, customerToPickup.get(), time);
+                customerToPickup.get().setPickupTime(time.getTime());
+                pickedUpCustomers.add(customerToPickup.get());
+                routeChanged();
+            }
+            route.remove(0);
+            routeChanged();
+            if (route.isEmpty()) {
+                becomeIdle();
             }
         }
 
-        if (getState() == TaxiState.IDLE && df != null && idleTravelDistance < idleTravelLimit) {
-            // Idle state: move according to the discrete field
-            fieldVector = df.getNextPosition(this, time.getStartTime(), messages, fieldRange).add(FIELD_VECTOR_FACTOR, fieldVector);
-            Point targetPoint = new Point(
-                    Math.max(0, Math.min(rm.getBounds().get(1).x, getPosition().get().x + fieldVector.getX())),
-                    Math.max(0, Math.min(rm.getBounds().get(1).y, getPosition().get().y + fieldVector.getY()))
-            );
-            MoveProgress moveProgress = rm.moveTo(this, targetPoint, time);
-            idleMoveProgress.add(moveProgress);
+        if (shouldDriveIdle() && time.hasTimeLeft()) {
+            // Idle state: move according to the discrete field, or to the target of the rebalancer
+            if (!rebalancing && shouldUpdateField()) {
+                Vector2D nextFieldVector = idleFieldVector != null ? idleFieldVector : df.getNextPosition(this, time.getStartTime(), fleet, fieldRange);
+                Vector2D fieldVector = nextFieldVector.add(FIELD_VECTOR_FACTOR, fleet.getFieldVector(id));
+                fleet.setFieldVector(id, fieldVector);
+                Point targetPoint = new Point(
+                        Math.max(0, Math.min(rm.getBounds().get(1).x, getPosition().get().x + fieldVector.getX())),
+                        Math.max(0, Math.min(rm.getBounds().get(1).y, getPosition().get().y + fieldVector.getY()))
+                );
+                if (roadNetwork != null) {
+                    // On a road graph the taxi can only drive to nodes
+                    targetPoint = roadNetwork.snap(targetPoint);
+                }
+                idleTarget = targetPoint;
+            }
+            MoveProgress moveProgress = rm.moveTo(this, idleTarget, time);
+            fleet.addIdleDistance(id, moveProgress.distance().getValue());
             idleTravelDistance += moveProgress.distance().getValue();
+            idleTicks++;
+            if (rebalancing && getPosition().get().equals(idleTarget)) {
+                idleTarget = null;
+            }
         }
-        // Broadcast position message
-        sendPositionMessage();
+        // Publish the new position and free capacity to the other taxis
+        updateFleetState();
         // Do trading if needed
         if (useTrading)
-            trade(messages);
+            trade(messages, time);
+    }
+
+    private boolean shouldDriveIdle() {
+        return canDriveIdle() && (!rebalancing || idleTarget != null);
+    }
+
+    /**
+     * Check whether this taxi is idle and may still drive without customers.
+     */
+    boolean canDriveIdle() {
+        return getState() == TaxiState.IDLE && df != null && idleTravelDistance < idleTravelLimit;
+    }
+
+    /**
+     * The point an idle taxi drives to, or null if it has none.
+     */
+    @Nullable
+    Point getIdleTarget() {
+        return idleTarget;
+    }
+
+    /**
+     * Let an idle taxi drive to the given point.
+     * Used by the {@link Rebalancer}, after which the taxi drives there and then waits.
+     */
+    void setIdleTarget(Point target) {
+        idleTarget = roadNetwork != null ? roadNetwork.snap(target) : target;
     }
 
-    private void sendPositionMessage() {
-        double freeCap = getFreeCapacity();
-        if (freeCap != 0) {
-            commDevice.get().broadcast(new PositionBroadcast(getPosition().get(), freeCap));
+    /**
+     * Check whether the field vector of an idle taxi should be calculated again in this tick.
+     * In between updates the taxi keeps driving to its last idle target.
+     */
+    private boolean shouldUpdateField() {
+        return idleTarget == null || idleTicks % fieldUpdateInterval == 0;
+    }
+
+    private void becomeIdle() {
+        setState(TaxiState.IDLE);
+        idleTravelDistance = 0;
+        idleTarget = null;
+    }
+
+    /**
+     * Send the accept and the bids of the decide phase, in the order in which they were decided.
+     * A customer that was picked up by another taxi in this tick gets the maximum bid, like a customer that was already picked up before.
+     */
+    private void sendContractNetMessages() {
+        if (acceptedCustomer != null) {
+            send(new ContractAccept(), acceptedCustomer);
+        }
+        for (int i = 0; i < bidCustomers.size(); i++) {
+            Customer customer = bidCustomers.get(i);
+            double bid = customer.getPosition().isPresent() ? bidRouteLengths.get(i) / getSpeed() : Double.MAX_VALUE;
+            send(new ContractBid(this, bid), customer);
+        }
+    }
+
+    private void updateFleetState() {
+        fleet.update(id, getPosition().get(), getFreeCapacity());
+    }
+
+    /**
+     * Send a message to the given recipient, or broadcast it if there is no recipient.
+     */
+    void send(MessageContents contents, @Nullable CommUser recipient) {
+        if (recipient == null) {
+            commDevice.get().broadcast(contents);
+        } else {
+            commDevice.get().send(contents, recipient);
+            if (recipient instanceof Customer) {
+                timers.messageSent((Customer) recipient);
+            }
+        }
+        if (recorder != null) {
+            recorder.record(this, recipient, contents);
         }
     }
 
@@ -210,7 +483,7 @@ public class Taxi extends Vehicle implements CommUser {
     }
 
     private double getFreeCapacity() {
-        if (currentCustomers.size() >= MAX_CONCURRENT_PICKUPS) {
+        if (currentCustomers.size() >= maxConcurrentPickups) {
             return 0;
         }
 
@@ -238,45 +511,41 @@ public class Taxi extends Vehicle implements CommUser {
                 .filter(m -> m.getContents() instanceof ContractRequest)
                 .map(m -> (ContractRequest) m.getContents())
                 .filter(m -> m.getCustomer().getNeededCapacity() <= freeCapacity)
-                .forEach(this::sendBid);
+                .filter(m -> isWithinBidRange(m.getCustomer()))
+                .forEach(this::prepareBid);
     }
 
     /**
-     * Handle a ContractRequest.
-     * Calculates the bid and sends a ContractBid to the customer.
-     *
-     * @param request the request.
+     * Check whether the pickup of the given customer can be within the bid range.
+     * The straight-line distance to the pickup is a lower bound for the distance along any route,
+     * so customers outside the range are skipped without calculating a route.
      */
-    private void sendBid(ContractRequest request) {
-        Customer customer = request.getCustomer();
-        ContractBid bid = new ContractBid(this, getBid(customer));
-        commDevice.get().send(bid, customer);
+    private boolean isWithinBidRange(Customer customer) {
+        return Point.distance(getPosition().get(), customer.getPickupLocation()) <= bidRange;
     }
 
     /**
-     * Calculate a bid for the given customer.
-     * The calculation is done based on the route this Taxi would take to pick up the customer.
+     * Handle a ContractRequest.
+     * The bid is based on the route this Taxi would take to pick up the customer, which is calculated later in the decide phase.
+     * It is sent as a ContractBid in the apply phase.
+     *
+     * @param request the request.
      */
-    private double getBid(Customer customer) {
-        if (getPosition().isPresent() && customer.getPosition().isPresent()) {
-            ArrayList<Customer> customersWithThisCustomer = new ArrayList<>(currentCustomers);
-            customersWithThisCustomer.add(customer);
-            return routeLength(getShortestRoute(customersWithThisCustomer)) / getSpeed();
-        }
-        return Double.MAX_VALUE;
+    private void prepareBid(ContractRequest request) {
+        bidCustomers.add(request.getCustomer());
     }
 
     /**
      * Handles a ContractDeal: accepts it and sets the Customer as next target.
+     * The ContractAccept is sent in the apply phase.
      *
      * @param deal the deal to accept.
      */
     private void acceptDeal(ContractDeal deal) {
         Customer customer = deal.getCustomer();
-        ContractAccept accept = new ContractAccept();
-        commDevice.get().send(accept, customer);
+        acceptedCustomer = customer;
         currentCustomers.add(customer);
-        sortRoute();
+        addToRoute(customer);
         setState(TaxiState.BUSY);
     }
 
@@ -285,66 +554,114 @@ public class Taxi extends Vehicle implements CommUser {
      */
     private void sortRoute() {
         route = getShortestRoute(currentCustomers);
+        incrementalRouteChanges = 0;
+        routeChanged();
     }
 
     /**
-     * Find the shortest route for the given list of customers.
+     * Update the route after the given customer was added to the current customers.
+     * With incremental routing the customer is inserted at the cheapest position,
+     * and the full route is only optimised again every {@link #REOPTIMISE_INTERVAL} changes.
      */
-    private ArrayList<Point> getShortestRoute(List<Customer> customers) {
-        if (customers.isEmpty()) {
-            return new ArrayList<>();
+    private void addToRoute(Customer customer) {
+        if (incrementalRouting && incrementalRouteChanges < REOPTIMISE_INTERVAL) {
+            routeSolver.insertCustomer(getPosition().get(), route, customer);
+            incrementalRouteChanges++;
+            routeChanged();
+        } else {
+            sortRoute();
         }
-        ArrayList<ArrayList<Point>> allPermutations = generatePermutations(new ArrayList<>(customers));
-        return allPermutations.stream().sorted(Comparator.comparingDouble(this::routeLength)).findFirst().get();
     }
 
     /**
-     * Generate all valid routes for the given list of customers.
-     * It creates all permutations taking into account that pickup has to occur before delivery
-     * and taking into account which customers have already been picked up.
+     * Update the route after the given customer was removed from the current customers.
+     * With incremental routing the stops of the customer are removed from the route,
+     * unless shared locations make it impossible to tell which stops were the customer's.
      */
-    private ArrayList<ArrayList<Point>> generatePermutations(ArrayList<Customer> customers) {
-        if (customers.isEmpty()) {
-            // Base case for recursion: empty route
-            ArrayList<ArrayList<Point>> result = new ArrayList<>();
-            result.add(new ArrayList<>());
-            return result;
+    private void removeFromRoute(Customer customer) {
+        if (incrementalRouting && incrementalRouteChanges < REOPTIMISE_INTERVAL && RouteSolver.removeCustomer(route, customer, currentCustomers, pickedUpCustomers)) {
+            incrementalRouteChanges++;
+            routeChanged();
+        } else {
+            sortRoute();
         }
+    }
 
-        // Remove first customer in the list
-        Customer firstCustomer = customers.remove(0);
+    /**
+     * Mark the customers or the route of this taxi as changed, which invalidates all cached route lengths.
+     */
+    private void routeChanged() {
+        routeVersion++;
+    }
 
-        // Recursive case with the remaining customers
-        ArrayList<ArrayList<Point>> permutations = generatePermutations(customers);
+    /**
+     * Clear the cached route lengths if the route or the position of this taxi changed since they were calculated.
+     */
+    private void validateRouteCache() {
+        Point position = getPosition().get();
+        if (routeCacheVersion != routeVersion || !position.equals(routeCachePosition)
+                || routeLengthWithCustomer.size() + routeLengthWithoutCustomer.size() > MAX_ROUTE_CACHE_SIZE) {
+            routeLengthWithCustomer.clear();
+            routeLengthWithoutCustomer.clear();
+            cachedRemainingRouteLength = -1;
+            routeCacheVersion = routeVersion;
+            routeCachePosition = position;
+        }
+    }
 
-        // Create new permutations from the recursive case and the current customer
-        ArrayList<ArrayList<Point>> returnValue = new ArrayList<>();
-        Point firstPickup = firstCustomer.getPickupLocation();
-        Point firstDelivery = firstCustomer.getDeliveryLocation();
-        if (!pickedUpCustomers.contains(firstCustomer)) {
-            // Insert pickup and delivery for this customer in all possible positions (pickup before delivery) for all other permutations
-            for (ArrayList<Point> smallerPermuted : permutations) {
-                for (int pickupIndex = 0; pickupIndex <= smallerPermuted.size(); pickupIndex++) {
-                    for (int deliveryIndex = pickupIndex + 1; deliveryIndex <= smallerPermuted.size() + 1; deliveryIndex++) {
-                        ArrayList<Point> temp = new ArrayList<>(smallerPermuted);
-                        temp.add(pickupIndex, firstPickup);
-                        temp.add(deliveryIndex, firstDelivery);
-                        returnValue.add(temp);
-                    }
-                }
-            }
-        } else {
-            // The current customer has already been picked up so we don't add his pickupLocation to the route
-            // Insert delivery for this customer in all possible positions for all other permutations
-            for (ArrayList<Point> smallerPermuted : permutations) {
-                for (int deliveryIndex = 0; deliveryIndex <= smallerPermuted.size(); deliveryIndex++) {
-                    ArrayList<Point> temp = new ArrayList<>(smallerPermuted);
-                    temp.add(deliveryIndex, firstDelivery);
-                    returnValue.add(temp);
-                }
-            }
+    /**
+     * Length of the shortest route serving the current customers and the given extra customer.
+     */
+    private double getRouteLengthWithCustomer(Customer customer) {
+        validateRouteCache();
+        Double length = routeLengthWithCustomer.get(customer);
+        if (length == null) {
+            ArrayList<Customer> customersWithThisCustomer = new ArrayList<>(currentCustomers);
+            customersWithThisCustomer.add(customer);
+            length = getShortestRouteLength(customersWithThisCustomer);
+            routeLengthWithCustomer.put(customer, length);
+        }
+        return length;
+    }
+
+    /**
+     * Length of the shortest route serving the given pending customers except for the given customer.
+     */
+    private double getRouteLengthWithoutCustomer(List<Customer> pendingCustomers, Customer customer) {
+        validateRouteCache();
+        Double length = routeLengthWithoutCustomer.get(customer);
+        if (length == null) {
+            List<Customer> newCustomers = new ArrayList<>(pendingCustomers);
+            newCustomers.remove(customer);
+            length = getShortestRouteLength(newCustomers);
+            routeLengthWithoutCustomer.put(customer, length);
         }
-        return returnValue;
+        return length;
+    }
+
+    /**
+     * Length of the remaining part of the current route.
+     */
+    private double getRemainingRouteLength() {
+        validateRouteCache();
+        if (cachedRemainingRouteLength < 0) {
+            cachedRemainingRouteLength = routeLength(route);
+        }
+        return cachedRemainingRouteLength;
+    }
+
+    /**
+     * Find the shortest route for the given list of customers.
+     */
+    private ArrayList<Point> getShortestRoute(List<Customer> customers) {
+        return routeSolver.getShortestRoute(getPosition().get(), customers, pickedUpCustomers);
+    }
+
+    /**
+     * Calculate the length of the shortest route for the given list of customers.
+     */
+    private double getShortestRouteLength(List<Customer> customers) {
+        return routeSolver.getShortestRouteLength(getPosition().get(), customers, pickedUpCustomers);
     }
 
     /**
@@ -353,12 +670,12 @@ public class Taxi extends Vehicle implements CommUser {
     private double routeLength(ArrayList<Point> route) {
         if (route.isEmpty())
             return 0;
-        double distance = Point.distance(getPosition().get(), route.get(0));
+        double distance = distanceMetric.distance(getPosition().get(), route.get(0));
         if (route.size() == 1)
             return distance;
         distance += IntStream
                 .range(0, route.size() - 1)
-                .mapToDouble(i -> Point.distance(route.get(i), route.get(i + 1)))
+                .mapToDouble(i -> distanceMetric.distance(route.get(i), route.get(i + 1)))
                 .sum();
         return distance;
     }
@@ -366,15 +683,15 @@ public class Taxi extends Vehicle implements CommUser {
     /**
      * Do trading with nearby taxis
      */
-    private void trade(ImmutableList<Message> messages) {
+    private void trade(ImmutableList<Message> messages, TimeLapse time) {
         handleTradeAccept(messages);
         handleTradeDeals(messages);
 
-        remainingRouteLength = routeLength(route);
+        remainingRouteLength = getRemainingRouteLength();
 
-        if (ticksSinceTradeDeal > TRADE_DEAL_WAIT_TICKS)
-            handleTradeRequests(messages);
-        sendTradeRequest(messages);
+        if (!tradeDealWaiting)
+            handleTradeRequests(messages, time);
+        sendTradeRequest();
     }
 
     /**
@@ -388,7 +705,7 @@ public class Taxi extends Vehicle implements CommUser {
                 .ifPresent(ta -> {
                     currentCustomers.add(ta.getCustomer());
                     dealCapacity = 0;
-                    sortRoute();
+                    addToRoute(ta.getCustomer());
                     setState(TaxiState.BUSY);
                 });
     }
@@ -406,13 +723,12 @@ public class Taxi extends Vehicle implements CommUser {
                 .ifPresent(tradeDeal -> {
                     if (currentCustomers.contains(tradeDeal.getCustomer()) && !pickedUpCustomers.contains(tradeDeal.getCustomer())) {
                         TradeAccept tradeAccept = new TradeAccept(tradeDeal.getCustomer());
-                        commDevice.get().send(tradeAccept, tradeDeal.getTaxi());
-                        tradeProfits.add(tradeDeal.getProfit());
+                        send(tradeAccept, tradeDeal.getTaxi());
+                        Reservoir.store(tradeProfits, tradeProfitSample.next(), tradeDeal.getProfit());
                         currentCustomers.remove(tradeDeal.getCustomer());
-                        sortRoute();
+                        removeFromRoute(tradeDeal.getCustomer());
                         if (currentCustomers.isEmpty()) {
-                            setState(TaxiState.IDLE);
-                            idleTravelDistance = 0;
+                            becomeIdle();
                         }
                     }
                 });
@@ -422,7 +738,7 @@ public class Taxi extends Vehicle implements CommUser {
      * Handle incoming trade requests.
      * The taxi can send only 1 trade deal every tick.
      */
-    private void handleTradeRequests(ImmutableList<Message> messages) {
+    private void handleTradeRequests(ImmutableList<Message> messages, TimeLapse time) {
         double freeCapacity = getFreeCapacity();
         List<TradeRequest> tradeRequests = messages.stream()
                 .filter(m -> m.getContents() instanceof TradeRequest)
@@ -442,42 +758,31 @@ public class Taxi extends Vehicle implements CommUser {
 
         if (bestRequest != null) {
             TradeDeal tradeDeal = new TradeDeal(bestProfit, this, bestRequest.getCustomer());
-            commDevice.get().send(tradeDeal, bestRequest.getTaxi());
-            ticksSinceTradeDeal = 0;
+            send(tradeDeal, bestRequest.getTaxi());
+            tradeDealTime = time.getStartTime();
             dealCapacity = bestRequest.getCustomer().getNeededCapacity();
         }
     }
 
     private double calculateProfit(TradeRequest tradeRequest) {
-        ArrayList<Customer> customersWithTradedCustomer = new ArrayList<>(currentCustomers);
-        customersWithTradedCustomer.add(tradeRequest.getCustomer());
-        double extraCost = routeLength(getShortestRoute(customersWithTradedCustomer)) - remainingRouteLength;
+        double extraCost = getRouteLengthWithCustomer(tradeRequest.getCustomer()) - remainingRouteLength;
         return tradeRequest.getRouteReduction() - extraCost;
     }
 
     /**
      * Send trade requests for a pending customer.
      */
-    private void sendTradeRequest(ImmutableList<Message> messages) {
+    private void sendTradeRequest() {
         List<Customer> pendingCustomers = currentCustomers.stream().filter(c -> !pickedUpCustomers.contains(c)).collect(Collectors.toList());
         if (pendingCustomers.isEmpty()) return;
 
-        List<Taxi> possibleTaxis = messages.stream()
-                .filter(m -> m.getSender() instanceof Taxi && m.getContents() instanceof PositionBroadcast)
-                .filter(m -> {
-                    double dist = Point.distance(getRoadModel().getPosition((Taxi) m.getSender()), getPosition().get());
-                    return dist < TRADE_RANGE_MAX && dist > TRADE_RANGE_MIN;
-                })
-                .map(m -> (Taxi) m.getSender())
-                .collect(Collectors.toList());
+        List<Taxi> possibleTaxis = fleet.getTaxisInRing(id, getPosition().get(), TRADE_RANGE_MIN, TRADE_RANGE_MAX);
         if (possibleTaxis.isEmpty()) return;
 
         double bestReduction = 0;
         Customer bestCustomer = null;
         for (Customer customer : pendingCustomers) {
-            List<Customer> newCustomers = new ArrayList<>(pendingCustomers);
-            newCustomers.remove(customer);
-            double routeReduction = remainingRouteLength - routeLength(getShortestRoute(newCustomers));
+            double routeReduction = remainingRouteLength - getRouteLengthWithoutCustomer(pendingCustomers, customer);
 
             if (routeReduction > bestReduction) {
                 bestReduction = routeReduction;
@@ -490,11 +795,74 @@ public class Taxi extends Vehicle implements CommUser {
             double finalBestReduction = bestReduction;
             possibleTaxis.forEach(taxi -> {
                 TradeRequest tradeRequest = new TradeRequest(this, finalBestCustomer, finalBestReduction);
-                commDevice.get().send(tradeRequest, taxi);
+                send(tradeRequest, taxi);
             });
         }
     }
 
+    /**
+     * Write the state of this taxi to a checkpoint.
+     * The id and the position are written by the {@link Checkpoint}, since they are needed to create the taxi again.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(getState().ordinal());
+        out.writeInt(route.size());
+        for (Point point : route) {
+            Checkpoint.writePoint(out, point);
+        }
+        Checkpoint.writeCustomers(out, currentCustomers);
+        Checkpoint.writeCustomers(out, pickedUpCustomers);
+        Vector2D fieldVector = fleet.getFieldVector(id);
+        out.writeDouble(fieldVector.getX());
+        out.writeDouble(fieldVector.getY());
+        out.writeDouble(idleTravelDistance);
+        out.writeLong(tradeDealTime);
+        out.writeDouble(dealCapacity);
+        out.writeInt(incrementalRouteChanges);
+        out.writeInt(idleTicks);
+        out.writeBoolean(idleTarget != null);
+        if (idleTarget != null) {
+            Checkpoint.writePoint(out, idleTarget);
+        }
+        out.writeLong(tradeProfitSample.getSeen());
+        out.writeInt(tradeProfits.size());
+        for (double profit : tradeProfits) {
+            out.writeDouble(profit);
+        }
+        out.writeDouble(fleet.getIdleDistance(id));
+        out.writeDouble(fleet.getFreeCapacity(id));
+    }
+
+    /**
+     * Restore the state written by {@link #writeState(DataOutput)}, with the customers of the checkpoint by id.
+     * The taxi does nothing in ticks before the given time.
+     */
+    void readState(DataInput in, Map<Long, Customer> customers, long activeFrom) throws IOException {
+        setState(TaxiState.values()[in.readInt()]);
+        route.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            route.add(Checkpoint.readPoint(in));
+        }
+        currentCustomers = Checkpoint.readCustomers(in, customers);
+        pickedUpCustomers = Checkpoint.readCustomers(in, customers);
+        fleet.setFieldVector(id, new Vector2D(in.readDouble(), in.readDouble()));
+        idleTravelDistance = in.readDouble();
+        tradeDealTime = in.readLong();
+        dealCapacity = in.readDouble();
+        incrementalRouteChanges = in.readInt();
+        idleTicks = in.readInt();
+        idleTarget = in.readBoolean() ? Checkpoint.readPoint(in) : null;
+        tradeProfitSample.setSeen(in.readLong());
+        tradeProfits.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            tradeProfits.add(in.readDouble());
+        }
+        fleet.setIdleDistance(id, in.readDouble());
+        fleet.update(id, getStartPosition(), in.readDouble());
+        routeChanged();
+        this.activeFrom = activeFrom;
+    }
+
     @Override
     public Optional<Point> getPosition() {
         return Optional.of(getRoadModel().getPosition(this));
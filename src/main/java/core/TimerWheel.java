@@ -0,0 +1,134 @@
+package core;
+
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Wakes up agents that do not tick themselves, at a deadline or after a message was sent to them.
+ * Deadlines are kept in a hashed timer wheel: a ring of slots with one slot per tick, where a deadline further away than the ring
+ * waits in its slot until its own round comes. A tick therefore only costs the agents that have something to do.
+ * <p>
+ * Messages sent in a tick are delivered at the end of it, so an agent that was sent a message is woken up in the next tick.
+ * The agents that wake up in the same tick are called in the order in which they were created.
+ */
+final class TimerWheel implements TickListener {
+    private static final int SLOTS = 64;
+
+    private final long tickLength;
+    private final List<List<Deadline>> slots;
+    private final List<Agent> sent;
+    private final List<Agent> delivered;
+    private final List<Agent> due;
+    private long lastTick;
+    private long createdAgents;
+
+    TimerWheel(long tickLength) {
+        this.tickLength = tickLength;
+        this.slots = new ArrayList<>();
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.sent = new ArrayList<>();
+        this.delivered = new ArrayList<>();
+        this.due = new ArrayList<>();
+        this.lastTick = -1;
+        this.createdAgents = 0;
+    }
+
+    /**
+     * The order of a new agent among the agents that wake up in the same tick.
+     */
+    long nextOrder() {
+        return createdAgents++;
+    }
+
+    /**
+     * Wake up the given agent when the given timeout after the given time has passed, as decided by {@link #hasPassed(long, long, int, long)},
+     * or in the next tick if that one has already passed.
+     */
+    void schedule(Agent agent, long time, long timeout, int minTicks) {
+        long tick = Math.max(lastTick + 1, getDeadlineTick(time, timeout, minTicks));
+        slots.get((int) (tick % SLOTS)).add(new Deadline(agent, tick));
+    }
+
+    /**
+     * Whether a timeout in ms after the given time has passed in the tick that starts at the given start time.
+     * It passes in the first tick that starts at least the timeout after the time, but no sooner than the given number of ticks
+     * after the tick of the time, so that a reply that takes that many ticks to arrive is not missed with long ticks.
+     */
+    boolean hasPassed(long time, long timeout, int minTicks, long startTime) {
+        return startTime / tickLength >= getDeadlineTick(time, timeout, minTicks);
+    }
+
+    private long getDeadlineTick(long time, long timeout, int minTicks) {
+        return Math.max(Math.floorDiv(time, tickLength) + minTicks, Math.floorDiv(time + timeout + tickLength - 1, tickLength));
+    }
+
+    /**
+     * Wake up the given agent in the tick after the current one, when the messages sent to it have been delivered.
+     */
+    void messageSent(Agent agent) {
+        sent.add(agent);
+    }
+
+    @Override
+    public void tick(@NotNull TimeLapse time) {
+        lastTick = time.getStartTime() / tickLength;
+
+        List<Deadline> slot = slots.get((int) (lastTick % SLOTS));
+        int kept = 0;
+        for (Deadline deadline : slot) {
+            if (deadline.tick == lastTick) {
+                due.add(deadline.agent);
+            } else {
+                slot.set(kept++, deadline);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+        due.addAll(delivered);
+        delivered.clear();
+
+        due.sort(Comparator.comparingLong(Agent::getWakeUpOrder));
+        Agent previous = null;
+        for (Agent agent : due) {
+            if (agent != previous) {
+                agent.wakeUp(time);
+            }
+            previous = agent;
+        }
+        due.clear();
+    }
+
+    @Override
+    public void afterTick(@NotNull TimeLapse time) {
+        delivered.addAll(sent);
+        sent.clear();
+    }
+
+    /**
+     * An agent that is woken up by a {@link TimerWheel}.
+     */
+    interface Agent {
+        long getWakeUpOrder();
+
+        /**
+         * Read the messages and check the deadlines of this agent. It can be called when there is nothing to do.
+         */
+        void wakeUp(TimeLapse time);
+    }
+
+    private static final class Deadline {
+        private final Agent agent;
+        private final long tick;
+
+        Deadline(Agent agent, long tick) {
+            this.agent = agent;
+            this.tick = tick;
+        }
+    }
+}
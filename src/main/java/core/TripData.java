@@ -0,0 +1,60 @@
+package core;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Historical trips of a time period, loaded once and kept in memory sorted by pickup time.
+ * It is immutable, so it can be shared by simulations that run at the same time.
+ */
+final class TripData implements TripSource {
+    private final HistoricalData[] trips;
+    private final LocalDateTime[] pickupTimes;
+
+    private TripData(List<HistoricalData> data) {
+        this.trips = data.toArray(new HistoricalData[0]);
+        Arrays.sort(trips, Comparator.comparing(HistoricalData::getPickupTime).thenComparingLong(HistoricalData::getId));
+        this.pickupTimes = new LocalDateTime[trips.length];
+        for (int i = 0; i < trips.length; i++) {
+            pickupTimes[i] = trips[i].getPickupTime();
+        }
+    }
+
+    /**
+     * Load all trips with a pickup time between two dates from the given source.
+     */
+    static TripData load(TripSource source, LocalDateTime start, LocalDateTime end) {
+        return new TripData(source.read(start, end));
+    }
+
+    int size() {
+        return trips.length;
+    }
+
+    @Override
+    public List<HistoricalData> read(LocalDateTime start, LocalDateTime end) {
+        int from = lowerBound(start);
+        int to = lowerBound(end);
+        return new ArrayList<>(Arrays.asList(trips).subList(from, Math.max(from, to)));
+    }
+
+    /**
+     * Index of the first trip with a pickup time at or after the given time.
+     */
+    private int lowerBound(LocalDateTime time) {
+        int low = 0;
+        int high = pickupTimes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (pickupTimes[middle].isBefore(time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
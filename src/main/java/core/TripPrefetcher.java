@@ -0,0 +1,36 @@
+package core;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Reads trips from another source in blocks of a fixed duration and serves the reads of single ticks from memory.
+ * A tick in a quiet period then costs a binary search instead of a database query.
+ * Reads are expected to move forward in time, as they do during a simulation.
+ */
+final class TripPrefetcher implements TripSource {
+    private final TripSource source;
+    private final Duration blockLength;
+    private LocalDateTime blockStart;
+    private LocalDateTime blockEnd;
+    private TripData block;
+
+    TripPrefetcher(TripSource source, Duration blockLength) {
+        this.source = source;
+        this.blockLength = blockLength;
+    }
+
+    @Override
+    public List<HistoricalData> read(LocalDateTime start, LocalDateTime end) {
+        if (block == null || start.isBefore(blockStart) || end.isAfter(blockEnd)) {
+            if (Duration.between(start, end).compareTo(blockLength) > 0) {
+                return source.read(start, end);
+            }
+            blockStart = start;
+            blockEnd = start.plus(blockLength);
+            block = TripData.load(source, blockStart, blockEnd);
+        }
+        return block.read(start, end);
+    }
+}
@@ -0,0 +1,14 @@
+package core;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Source of historical taxi trips.
+ */
+interface TripSource {
+    /**
+     * Read the trips with a pickup time between two dates.
+     */
+    List<HistoricalData> read(LocalDateTime start, LocalDateTime end);
+}
@@ -0,0 +1,170 @@
+package core.statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Distribution of a stream of non-negative values in constant memory, with log-sized buckets like an HDR histogram.
+ * The count, sum, mean, minimum and maximum are exact. Values are counted in units of {@link #unit}, and a unit value is counted exactly
+ * up to 2 * 10^digits; above that the buckets double in width with every power of two, so a percentile is off by less than 10^-digits relative.
+ * The bucket counts are a primitive array that only grows with the largest value, so millions of values take a few kilobytes.
+ */
+public final class Histogram implements Serializable {
+    private static final long serialVersionUID = 2207180254733614151L;
+
+    /**
+     * The number of significant decimal digits of the bucket boundaries.
+     */
+    public final int significantDigits;
+    /**
+     * The smallest difference between values that is kept, for example 1 ms for times or 0.001 for ratios.
+     */
+    public final double unit;
+    public long count;
+    public double sum;
+    public double min;
+    public double max;
+    /**
+     * The counts of the buckets. The first {@code 2^subBucketBits} buckets are one unit wide,
+     * every next {@code 2^(subBucketBits-1)} buckets are twice as wide as the ones before.
+     */
+    public long[] counts;
+    private final int subBucketBits;
+
+    public Histogram(int significantDigits, double unit) {
+        this.significantDigits = significantDigits;
+        this.unit = unit;
+        this.subBucketBits = 64 - Long.numberOfLeadingZeros(2 * (long) Math.pow(10, significantDigits) - 1);
+        this.counts = new long[0];
+        this.count = 0;
+        this.sum = 0;
+        this.min = 0;
+        this.max = 0;
+    }
+
+    public void record(double value) {
+        int index = getIndex(Math.max(0, Math.round(value / unit)));
+        if (index >= counts.length) {
+            // Only a new largest value grows the counts, which happens a few thousand times at most
+            counts = Arrays.copyOf(counts, index + 1);
+        }
+        counts[index]++;
+        min = count == 0 ? value : Math.min(min, value);
+        max = count == 0 ? value : Math.max(max, value);
+        count++;
+        sum += value;
+    }
+
+    /**
+     * Add the values of another histogram with the same precision.
+     */
+    public void add(Histogram other) {
+        if (other.significantDigits != significantDigits || other.unit != unit) {
+            throw new IllegalArgumentException("Histograms have a different precision");
+        }
+        if (other.count == 0) {
+            return;
+        }
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        min = count == 0 ? other.min : Math.min(min, other.min);
+        max = count == 0 ? other.max : Math.max(max, other.max);
+        count += other.count;
+        sum += other.sum;
+    }
+
+    /**
+     * The exact mean of the values, or NaN without values.
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * The value below which the given percentage of the values lie, as the middle of its bucket.
+     */
+    public double getPercentile(double percentage) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentage / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                double middle = (getLowest(i) + (getWidth(i) - 1) / 2.0) * unit;
+                return Math.min(max, Math.max(min, middle));
+            }
+        }
+        return max;
+    }
+
+    private int getIndex(long value) {
+        int subBucketCount = 1 << subBucketBits;
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (subBucketBits - 1);
+        int half = subBucketCount / 2;
+        return subBucketCount + (shift - 1) * half + (int) ((value >> shift) - half);
+    }
+
+    private long getLowest(int index) {
+        int subBucketCount = 1 << subBucketBits;
+        if (index < subBucketCount) {
+            return index;
+        }
+        int half = subBucketCount / 2;
+        int shift = (index - subBucketCount) / half + 1;
+        return ((long) (index - subBucketCount) % half + half) << shift;
+    }
+
+    private long getWidth(int index) {
+        int subBucketCount = 1 << subBucketBits;
+        return index < subBucketCount ? 1 : 1L << ((index - subBucketCount) / (subBucketCount / 2) + 1);
+    }
+
+    void writeState(DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(counts.length);
+        for (long c : counts) {
+            out.writeLong(c);
+        }
+    }
+
+    void readState(DataInput in) throws IOException {
+        count = in.readLong();
+        sum = in.readDouble();
+        min = in.readDouble();
+        max = in.readDouble();
+        counts = new long[in.readInt()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readLong();
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Histogram)) {
+            return false;
+        }
+        Histogram other = (Histogram) obj;
+        return significantDigits == other.significantDigits && unit == other.unit && count == other.count && sum == other.sum
+                && Arrays.equals(counts, other.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(counts) * 31 + Long.hashCode(count);
+    }
+}
@@ -0,0 +1,65 @@
+package core.statistics;
+
+import java.util.List;
+
+/**
+ * Keeps a uniform random sample of bounded size of a stream of values, so a long run reports its distributions in bounded memory.
+ * The values are stored in lists owned by the caller: {@link #next()} tells where the next value of the stream goes.
+ * The choice only depends on the seed and the number of values seen, so a sample continues the same way after a checkpoint.
+ */
+public final class Reservoir {
+    private final int capacity;
+    private final long seed;
+    private long seen;
+
+    /**
+     * Create a reservoir that keeps at most the given number of values. With {@link Integer#MAX_VALUE} it keeps all values.
+     */
+    public Reservoir(int capacity, long seed) {
+        this.capacity = capacity;
+        this.seed = seed;
+        this.seen = 0;
+    }
+
+    /**
+     * Index at which the next value of the stream is stored in the sample, or -1 if the value is dropped.
+     * The index equals the size of the sample while the sample is not full.
+     */
+    public int next() {
+        seen++;
+        if (seen <= capacity) {
+            return (int) (seen - 1);
+        }
+        long index = Math.floorMod(mix(seed + seen), seen);
+        return index < capacity ? (int) index : -1;
+    }
+
+    public long getSeen() {
+        return seen;
+    }
+
+    /**
+     * Continue a stream of which the given number of values were seen, for example after a checkpoint.
+     */
+    public void setSeen(long seen) {
+        this.seen = seen;
+    }
+
+    /**
+     * Store a value at an index returned by {@link #next()}.
+     */
+    public static <T> void store(List<T> sample, int index, T value) {
+        if (index == sample.size()) {
+            sample.add(value);
+        } else if (index >= 0) {
+            sample.set(index, value);
+        }
+    }
+
+    // SplitMix64 finaliser
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
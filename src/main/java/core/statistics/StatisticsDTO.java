@@ -2,6 +2,10 @@ package core.statistics;
 
 import com.google.common.base.Objects;
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
@@ -11,12 +15,24 @@ import javax.measure.quantity.Duration;
 import javax.measure.quantity.Length;
 import javax.measure.quantity.Velocity;
 import javax.measure.unit.Unit;
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /*
  * Copyright (C) 2011-2016 Rinde van Lon, iMinds-DistriNet, KU Leuven
@@ -45,6 +61,7 @@ import java.util.List;
  */
 public class StatisticsDTO implements Serializable {
     private static final long serialVersionUID = 1968951252238291733L;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     /**
      * The time unit that is used in the simulation that generated this statistics
@@ -91,6 +108,16 @@ public class StatisticsDTO implements Serializable {
      * divided by the time it would have taken if the taxi drove in a straight line at its max speed.
      */
     public final ArrayList<Float> travelTimeOverhead;
+    /**
+     * The distributions of the pickup waiting times, requests and travel time overheads of a run that kept histograms,
+     * in which case the lists above are empty. Null otherwise.
+     */
+    @Nullable
+    public Histogram pickupWaitingTimeHistogram;
+    @Nullable
+    public Histogram numberOfRequestsHistogram;
+    @Nullable
+    public Histogram travelTimeOverheadHistogram;
     /**
      * The time (ms) it took to compute the simulation.
      */
@@ -112,8 +139,17 @@ public class StatisticsDTO implements Serializable {
      * Number of vehicles that have been used, 'used' means has moved.
      */
     public final int movedVehicles;
-    public ArrayList<Integer> amountOfIdleTaxis;
-    public ArrayList<Integer> amountOfWaitingCustomers;
+    /**
+     * The distance driven without and with passengers, in total and per vehicle in the order in which the vehicles were added.
+     */
+    public double emptyDistance;
+    public double loadedDistance;
+    public double[] emptyDistancePerVehicle;
+    public double[] loadedDistancePerVehicle;
+    /**
+     * The rollups of the metrics recorded over time, such as the number of idle taxis, by name.
+     */
+    public Map<String, List<TimeSeries.Rollup>> series;
     public List<Double> totalIdleMovement;
     public ArrayList<Double> tradeProfits;
     public String[] args;
@@ -151,8 +187,9 @@ public class StatisticsDTO implements Serializable {
         simFinish = finish;
         totalVehicles = totalVeh;
         movedVehicles = moved;
-        amountOfIdleTaxis = new ArrayList<>();
-        amountOfWaitingCustomers = new ArrayList<>();
+        series = new LinkedHashMap<>();
+        emptyDistancePerVehicle = new double[0];
+        loadedDistancePerVehicle = new double[0];
         totalIdleMovement = new ArrayList<>();
         tradeProfits = new ArrayList<>();
         args = new String[]{};
@@ -161,6 +198,37 @@ public class StatisticsDTO implements Serializable {
         speedUnit = speed.toString();
     }
 
+    /**
+     * The mean pickup waiting time, from the histogram if the run kept one and from the (possibly sampled) values otherwise.
+     */
+    public double getMeanPickupWaitingTime() {
+        return pickupWaitingTimeHistogram != null
+                ? pickupWaitingTimeHistogram.getMean()
+                : pickupWaitingTimes.stream().mapToLong(Long::longValue).average().orElse(Double.NaN);
+    }
+
+    /**
+     * The mean travel time overhead, from the histogram if the run kept one and from the (possibly sampled) values otherwise.
+     */
+    public double getMeanTravelTimeOverhead() {
+        return travelTimeOverheadHistogram != null
+                ? travelTimeOverheadHistogram.getMean()
+                : travelTimeOverhead.stream().mapToDouble(Float::doubleValue).average().orElse(Double.NaN);
+    }
+
+    public void setHistograms(Histogram pickupWaitingTimes, Histogram numberOfRequests, Histogram travelTimeOverhead) {
+        this.pickupWaitingTimeHistogram = pickupWaitingTimes;
+        this.numberOfRequestsHistogram = numberOfRequests;
+        this.travelTimeOverheadHistogram = travelTimeOverhead;
+    }
+
+    public void setDistances(double emptyDistance, double loadedDistance, double[] emptyDistancePerVehicle, double[] loadedDistancePerVehicle) {
+        this.emptyDistance = emptyDistance;
+        this.loadedDistance = loadedDistance;
+        this.emptyDistancePerVehicle = emptyDistancePerVehicle;
+        this.loadedDistancePerVehicle = loadedDistancePerVehicle;
+    }
+
     public void setArgs(String[] args) {
         this.args = args;
     }
@@ -169,12 +237,8 @@ public class StatisticsDTO implements Serializable {
         this.tradeProfits = tradeProfits;
     }
 
-    public void setAmountOfIdleTaxis(ArrayList<Integer> amountOfIdleTaxis) {
-        this.amountOfIdleTaxis = amountOfIdleTaxis;
-    }
-
-    public void setAmountOfWaitingCustomers(ArrayList<Integer> amountOfWaitingCustomers) {
-        this.amountOfWaitingCustomers = amountOfWaitingCustomers;
+    public void setSeries(Map<String, List<TimeSeries.Rollup>> series) {
+        this.series = series;
     }
 
     public void setTotalIdleMovement(List<Double> totalIdleMovement) {
@@ -204,6 +268,9 @@ public class StatisticsDTO implements Serializable {
                 .append(totalDeliveries, other.totalDeliveries)
                 .append(pickupWaitingTimes, other.pickupWaitingTimes)
                 .append(travelTimeOverhead, other.travelTimeOverhead)
+                .append(pickupWaitingTimeHistogram, other.pickupWaitingTimeHistogram)
+                .append(numberOfRequestsHistogram, other.numberOfRequestsHistogram)
+                .append(travelTimeOverheadHistogram, other.travelTimeOverheadHistogram)
                 .append(simulationTime, other.simulationTime)
                 .append(simFinish, other.simFinish)
                 .append(totalVehicles, other.totalVehicles)
@@ -213,21 +280,62 @@ public class StatisticsDTO implements Serializable {
     @Override
     public int hashCode() {
         return Objects.hashCode(totalDistance, totalPickups,
-                pickupWaitingTimes, travelTimeOverhead, simulationTime,
+                pickupWaitingTimes, travelTimeOverhead, pickupWaitingTimeHistogram,
+                numberOfRequestsHistogram, travelTimeOverheadHistogram, simulationTime,
                 simFinish, totalVehicles, movedVehicles);
     }
 
     public void save() {
+        save(false);
+    }
+
+    public void save(boolean compress) {
+        save("stats/stats_" + new Date().getTime() + (compress ? ".json.gz" : ".json"));
+    }
+
+    /**
+     * Write the statistics as JSON to the given file like {@link #write(String)}, printing the error if that fails.
+     */
+    public void save(String fileName) {
         try {
-            String fileName = "stats/stats_" + new Date().getTime() + ".json";
-            Gson gson = new Gson();
-            String json = gson.toJson(this);
-            FileWriter fw = new FileWriter(fileName);
-            fw.write(json);
-            fw.flush();
-            fw.close();
+            write(fileName);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Write the statistics as JSON to the given file, gzipped if its name ends with .gz.
+     * The document is streamed to the file value by value, so saving takes no memory beyond the statistics themselves.
+     */
+    public void write(String fileName) throws IOException {
+        try (OutputStream file = new FileOutputStream(fileName);
+             OutputStream out = fileName.endsWith(".gz") ? new GZIPOutputStream(file, BUFFER_SIZE) : file;
+             JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE))) {
+            new Gson().toJson(this, StatisticsDTO.class, writer);
+        } catch (JsonIOException e) {
+            throw new IOException("Could not write " + fileName, e);
+        }
+    }
+
+    /**
+     * Read statistics written by {@link #save(String)}, gzipped or not.
+     * The document is parsed while it is read, so loading takes no memory beyond the statistics themselves.
+     */
+    public static StatisticsDTO load(String fileName) throws IOException {
+        try (InputStream file = new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE)) {
+            file.mark(2);
+            boolean gzipped = file.read() == (GZIPInputStream.GZIP_MAGIC & 0xff) && file.read() == (GZIPInputStream.GZIP_MAGIC >>> 8);
+            file.reset();
+            InputStream in = gzipped ? new GZIPInputStream(file, BUFFER_SIZE) : file;
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            StatisticsDTO stats = new Gson().fromJson(reader, StatisticsDTO.class);
+            if (stats == null) {
+                throw new IOException("No statistics in " + fileName);
+            }
+            return stats;
+        } catch (JsonParseException e) {
+            throw new IOException("Could not parse " + fileName, e);
+        }
+    }
 }
@@ -37,19 +37,28 @@ import com.google.auto.value.AutoValue;
 import core.Customer;
 import core.MasProject;
 
+import javax.annotation.Nullable;
 import javax.measure.unit.Unit;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
 
 import static com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType.*;
 import static com.github.rinde.rinsim.core.model.road.GenericRoadModel.RoadEventType.MOVE;
 import static com.github.rinde.rinsim.core.model.time.Clock.ClockEventType.STARTED;
 import static com.github.rinde.rinsim.core.model.time.Clock.ClockEventType.STOPPED;
 import static com.google.common.base.Verify.verify;
-import static com.google.common.collect.Maps.newLinkedHashMap;
 
 
 public final class StatsTracker extends AbstractModelVoid {
+    private static final long PICKUP_SAMPLE_SEED = 1;
+    private static final long OVERHEAD_SAMPLE_SEED = 2;
+    private static final double OVERHEAD_UNIT = 0.001;
+    private static final int INITIAL_VEHICLES = 256;
     private final EventDispatcher eventDispatcher;
     private final TheListener theListener;
     private final Clock clock;
@@ -93,14 +102,130 @@ public final class StatsTracker extends AbstractModelVoid {
             compTime = System.currentTimeMillis() - theListener.startTimeReal;
         }
 
-        return new StatisticsDTO(
+        StatisticsDTO stats = new StatisticsDTO(
                 theListener.totalDistance,
                 theListener.totalPickups, theListener.totalDeliveries,
                 theListener.pickupWaitingTimes, theListener.totalRequestsBeforePickup, theListener.travelOverhead, compTime,
                 clock.getCurrentTime(), theListener.simFinish,
-                theListener.totalVehicles, theListener.distanceMap.size(),
+                theListener.totalVehicles, theListener.movedVehicles,
                 clock.getTimeUnit(), roadModel.getDistanceUnit(),
                 roadModel.getSpeedUnit());
+        if (theListener.waitingTimeHistogram != null) {
+            stats.setHistograms(theListener.waitingTimeHistogram, theListener.requestHistogram, theListener.overheadHistogram);
+        }
+        stats.setDistances(theListener.emptyDistance, theListener.loadedDistance,
+                Arrays.copyOf(theListener.emptyDistances, theListener.trackedVehicles),
+                Arrays.copyOf(theListener.loadedDistances, theListener.trackedVehicles));
+        return stats;
+    }
+
+    /**
+     * Keep histograms of the pickup waiting times, requests and travel overheads with the given number of significant digits
+     * instead of the values themselves. The counts and means stay exact and the memory no longer grows with the number of pickups.
+     */
+    public void useHistograms(int significantDigits) {
+        theListener.waitingTimeHistogram = new Histogram(significantDigits, 1);
+        theListener.requestHistogram = new Histogram(significantDigits, 1);
+        theListener.overheadHistogram = new Histogram(significantDigits, OVERHEAD_UNIT);
+    }
+
+    /**
+     * Keep a uniform sample of at most the given number of pickups and deliveries instead of all of them,
+     * so the statistics of a long run fit in bounded memory. The totals stay exact.
+     */
+    public void limitSamples(int sampleLimit) {
+        theListener.pickupSample = new Reservoir(sampleLimit, PICKUP_SAMPLE_SEED);
+        theListener.overheadSample = new Reservoir(sampleLimit, OVERHEAD_SAMPLE_SEED);
+    }
+
+    /**
+     * Write the accumulated statistics to a checkpoint, with the vehicles identified by the given ids.
+     */
+    public void writeState(DataOutput out, ToIntFunction<MovingRoadUser> vehicleIds) throws IOException {
+        out.writeInt(theListener.totalVehicles);
+        out.writeDouble(theListener.totalDistance);
+        out.writeInt(theListener.totalPickups);
+        out.writeInt(theListener.totalDeliveries);
+        out.writeInt(theListener.pickupWaitingTimes.size());
+        for (int i = 0; i < theListener.pickupWaitingTimes.size(); i++) {
+            out.writeLong(theListener.pickupWaitingTimes.get(i));
+            out.writeInt(theListener.totalRequestsBeforePickup.get(i));
+        }
+        out.writeInt(theListener.travelOverhead.size());
+        for (float overhead : theListener.travelOverhead) {
+            out.writeFloat(overhead);
+        }
+        out.writeBoolean(theListener.waitingTimeHistogram != null);
+        if (theListener.waitingTimeHistogram != null) {
+            out.writeInt(theListener.waitingTimeHistogram.significantDigits);
+            theListener.waitingTimeHistogram.writeState(out);
+            theListener.requestHistogram.writeState(out);
+            theListener.overheadHistogram.writeState(out);
+        }
+        out.writeInt(theListener.trackedVehicles);
+        for (int i = 0; i < theListener.trackedVehicles; i++) {
+            out.writeInt(vehicleIds.applyAsInt(theListener.vehicles[i]));
+            out.writeDouble(theListener.emptyDistances[i]);
+            out.writeDouble(theListener.loadedDistances[i]);
+            out.writeBoolean(theListener.moved[i]);
+        }
+    }
+
+    /**
+     * Replace the accumulated statistics with those written by {@link #writeState(DataOutput, ToIntFunction)},
+     * with the vehicles looked up by their ids.
+     */
+    public void readState(DataInput in, IntFunction<MovingRoadUser> vehicles) throws IOException {
+        theListener.totalVehicles = in.readInt();
+        theListener.totalDistance = in.readDouble();
+        theListener.totalPickups = in.readInt();
+        theListener.totalDeliveries = in.readInt();
+        theListener.pickupWaitingTimes.clear();
+        theListener.totalRequestsBeforePickup.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            theListener.pickupWaitingTimes.add(in.readLong());
+            theListener.totalRequestsBeforePickup.add(in.readInt());
+        }
+        theListener.travelOverhead.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            theListener.travelOverhead.add(in.readFloat());
+        }
+        if (in.readBoolean()) {
+            int significantDigits = in.readInt();
+            if (theListener.waitingTimeHistogram == null || theListener.waitingTimeHistogram.significantDigits != significantDigits) {
+                throw new IOException("Checkpoint was written with histograms of " + significantDigits + " significant digits");
+            }
+            theListener.waitingTimeHistogram.readState(in);
+            theListener.requestHistogram.readState(in);
+            theListener.overheadHistogram.readState(in);
+        } else if (theListener.waitingTimeHistogram != null) {
+            throw new IOException("Checkpoint was written without histograms");
+        }
+        // The vehicles of the checkpoint were added again before the statistics are restored, so they already have an index
+        Arrays.fill(theListener.emptyDistances, 0);
+        Arrays.fill(theListener.loadedDistances, 0);
+        Arrays.fill(theListener.moved, false);
+        theListener.emptyDistance = 0;
+        theListener.loadedDistance = 0;
+        theListener.movedVehicles = 0;
+        for (int i = in.readInt(); i > 0; i--) {
+            MovingRoadUser vehicle = vehicles.apply(in.readInt());
+            double empty = in.readDouble();
+            double loaded = in.readDouble();
+            boolean moved = in.readBoolean();
+            int index = vehicle instanceof TrackedVehicle ? ((TrackedVehicle) vehicle).getTrackerIndex() : -1;
+            if (index < 0) {
+                throw new IOException("Checkpoint has distances of a vehicle that is not tracked");
+            }
+            theListener.emptyDistances[index] = empty;
+            theListener.loadedDistances[index] = loaded;
+            theListener.moved[index] = moved;
+            theListener.emptyDistance += empty;
+            theListener.loadedDistance += loaded;
+            theListener.movedVehicles += moved ? 1 : 0;
+        }
+        theListener.pickupSample.setSeen(theListener.totalPickups);
+        theListener.overheadSample.setSeen(theListener.totalDeliveries);
     }
 
     @Override
@@ -141,15 +266,30 @@ public final class StatsTracker extends AbstractModelVoid {
 
     class TheListener implements Listener {
 
-        final Map<MovingRoadUser, Double> distanceMap;
-        // vehicles
+        // vehicles, with the distances of the tracked vehicles by their index
         int totalVehicles;
         double totalDistance;
+        int trackedVehicles;
+        TrackedVehicle[] vehicles;
+        double[] emptyDistances;
+        double[] loadedDistances;
+        boolean[] moved;
+        int movedVehicles;
+        double emptyDistance;
+        double loadedDistance;
         int totalPickups;
         ArrayList<Integer> totalRequestsBeforePickup;
         int totalDeliveries;
         ArrayList<Long> pickupWaitingTimes;
         ArrayList<Float> travelOverhead;
+        Reservoir pickupSample;
+        Reservoir overheadSample;
+        @Nullable
+        Histogram waitingTimeHistogram;
+        @Nullable
+        Histogram requestHistogram;
+        @Nullable
+        Histogram overheadHistogram;
 
         // simulation
         long startTimeReal;
@@ -161,14 +301,23 @@ public final class StatsTracker extends AbstractModelVoid {
 
         TheListener() {
             totalVehicles = 0;
-            distanceMap = newLinkedHashMap();
             totalDistance = 0d;
+            trackedVehicles = 0;
+            vehicles = new TrackedVehicle[INITIAL_VEHICLES];
+            emptyDistances = new double[INITIAL_VEHICLES];
+            loadedDistances = new double[INITIAL_VEHICLES];
+            moved = new boolean[INITIAL_VEHICLES];
+            movedVehicles = 0;
+            emptyDistance = 0;
+            loadedDistance = 0;
 
             totalPickups = 0;
             totalDeliveries = 0;
             pickupWaitingTimes = new ArrayList<>();
             totalRequestsBeforePickup = new ArrayList<>();
             travelOverhead = new ArrayList<>();
+            pickupSample = new Reservoir(Integer.MAX_VALUE, PICKUP_SAMPLE_SEED);
+            overheadSample = new Reservoir(Integer.MAX_VALUE, OVERHEAD_SAMPLE_SEED);
 
             simFinish = false;
         }
@@ -185,8 +334,11 @@ public final class StatsTracker extends AbstractModelVoid {
             } else if (e.getEventType() == RoadEventType.MOVE) {
                 verify(e instanceof MoveEvent);
                 final MoveEvent me = (MoveEvent) e;
-                increment((MovingRoadUser) me.roadUser, me.pathProgress.distance().getValue());
-                totalDistance += me.pathProgress.distance().getValue();
+                final double distance = me.pathProgress.distance().getValue();
+                if (me.roadUser instanceof TrackedVehicle) {
+                    increment((TrackedVehicle) me.roadUser, distance);
+                }
+                totalDistance += distance;
             } else if (e.getEventType() == PDPModelEventType.END_PICKUP) {
                 verify(e instanceof PDPModelEvent);
                 final PDPModelEvent pme = (PDPModelEvent) e;
@@ -196,9 +348,16 @@ public final class StatsTracker extends AbstractModelVoid {
                 assert customer != null;
                 assert vehicle != null;
 
-                final long waitingTime = clock.getCurrentTime() - customer.getOrderAnnounceTime();
-                pickupWaitingTimes.add(waitingTime);
-                totalRequestsBeforePickup.add(customer.getNumberOfSentRequests());
+                // The event time is when the pickup ended, which can be within the tick when a taxi serves several stops
+                final long waitingTime = pme.time - customer.getOrderAnnounceTime();
+                if (waitingTimeHistogram != null) {
+                    waitingTimeHistogram.record(waitingTime);
+                    requestHistogram.record(customer.getNumberOfSentRequests());
+                } else {
+                    int index = pickupSample.next();
+                    Reservoir.store(pickupWaitingTimes, index, waitingTime);
+                    Reservoir.store(totalRequestsBeforePickup, index, customer.getNumberOfSentRequests());
+                }
                 totalPickups++;
             } else if (e.getEventType() == PDPModelEventType.END_DELIVERY) {
                 final PDPModelEvent pme = (PDPModelEvent) e;
@@ -208,19 +367,24 @@ public final class StatsTracker extends AbstractModelVoid {
                 assert customer != null;
                 assert vehicle != null;
 
-                final double travelTime = clock.getTimeUnit().getConverterTo(Unit.valueOf("h")).convert(clock.getCurrentTime() - customer.getPickupTime());
-                final double minimumTime = Point.distance(customer.getPickupLocation(), customer.getDeliveryLocation()) / MasProject.MAX_SPEED;
+                final double travelTime = clock.getTimeUnit().getConverterTo(Unit.valueOf("h")).convert(pme.time - customer.getPickupTime());
+                final double minimumTime = Point.distance(customer.getTripPickupLocation(), customer.getDeliveryLocation()) / MasProject.MAX_SPEED;
 
-                if (travelTime > 0 && minimumTime > 0) {
-                    travelOverhead.add((float) (travelTime / minimumTime));
+                // To avoid infinity, just say that overhead is 0 (fraction is 1)
+                final float overhead = travelTime > 0 && minimumTime > 0 ? (float) (travelTime / minimumTime) : 1f;
+                if (overheadHistogram != null) {
+                    overheadHistogram.record(overhead);
                 } else {
-                    // To avoid infinity, just say that overhead is 0 (fraction is 1)
-                    travelOverhead.add(1f);
+                    Reservoir.store(travelOverhead, overheadSample.next(), overhead);
                 }
                 totalDeliveries++;
             } else if (e.getEventType() == NEW_PARCEL) {
                 // pdp model event
             } else if (e.getEventType() == NEW_VEHICLE) {
+                final Vehicle vehicle = ((PDPModelEvent) e).vehicle;
+                if (vehicle instanceof TrackedVehicle) {
+                    track((TrackedVehicle) vehicle);
+                }
                 totalVehicles++;
             } else {
                 // currently not handling fall throughs
@@ -228,11 +392,34 @@ public final class StatsTracker extends AbstractModelVoid {
 
         }
 
-        void increment(MovingRoadUser mru, double num) {
-            if (!distanceMap.containsKey(mru)) {
-                distanceMap.put(mru, num);
+        void track(TrackedVehicle vehicle) {
+            if (trackedVehicles == vehicles.length) {
+                int length = 2 * vehicles.length;
+                vehicles = Arrays.copyOf(vehicles, length);
+                emptyDistances = Arrays.copyOf(emptyDistances, length);
+                loadedDistances = Arrays.copyOf(loadedDistances, length);
+                moved = Arrays.copyOf(moved, length);
+            }
+            vehicle.setTrackerIndex(trackedVehicles);
+            vehicles[trackedVehicles] = vehicle;
+            trackedVehicles++;
+        }
+
+        void increment(TrackedVehicle vehicle, double distance) {
+            int index = vehicle.getTrackerIndex();
+            if (index < 0) {
+                return;
+            }
+            if (vehicle.isLoaded()) {
+                loadedDistances[index] += distance;
+                loadedDistance += distance;
             } else {
-                distanceMap.put(mru, distanceMap.get(mru) + num);
+                emptyDistances[index] += distance;
+                emptyDistance += distance;
+            }
+            if (!moved[index]) {
+                moved[index] = true;
+                movedVehicles++;
             }
         }
     }
@@ -0,0 +1,268 @@
+package core.statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records named metrics over simulated time as rollups: the minimum, maximum, mean and last value per bucket of a fixed length,
+ * at several bucket lengths at once. A metric is recorded every tick, but its memory grows with the number of buckets, not ticks.
+ * The finest bucket length only keeps the buckets of the last {@link #RECENT_WINDOW} ms in a ring buffer when there are coarser ones,
+ * which keep the whole run.
+ */
+public final class TimeSeries {
+    public static final long RECENT_WINDOW = 60 * 60 * 1000;
+    private static final int INITIAL_BUCKETS = 64;
+
+    private final List<Long> bucketLengths;
+    private final Map<String, Metric> metrics;
+
+    /**
+     * Create a time series with the given bucket lengths in ms, from fine to coarse.
+     */
+    public TimeSeries(List<Long> bucketLengths) {
+        this.bucketLengths = bucketLengths;
+        this.metrics = new LinkedHashMap<>();
+    }
+
+    /**
+     * Register a metric with the given name, which is recorded through the returned metric.
+     */
+    public Metric register(String name) {
+        Level[] levels = new Level[bucketLengths.size()];
+        for (int i = 0; i < levels.length; i++) {
+            long bucketLength = bucketLengths.get(i);
+            int capacity = i == 0 && levels.length > 1 ? (int) Math.max(1, RECENT_WINDOW / bucketLength) : Integer.MAX_VALUE;
+            levels[i] = new Level(bucketLength, capacity);
+        }
+        Metric metric = new Metric(levels);
+        metrics.put(name, metric);
+        return metric;
+    }
+
+    /**
+     * The rollups of all metrics by name, from the finest to the coarsest bucket length.
+     */
+    public Map<String, List<Rollup>> getRollups() {
+        Map<String, List<Rollup>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            List<Rollup> rollups = new ArrayList<>();
+            for (Level level : entry.getValue().levels) {
+                rollups.add(level.toRollup());
+            }
+            result.put(entry.getKey(), rollups);
+        }
+        return result;
+    }
+
+    /**
+     * Write the buckets of all metrics to a checkpoint.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(metrics.size());
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().levels.length);
+            for (Level level : entry.getValue().levels) {
+                level.writeState(out);
+            }
+        }
+    }
+
+    /**
+     * Replace the buckets of the registered metrics with those written by {@link #writeState(DataOutput)}.
+     */
+    public void readState(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count != metrics.size()) {
+            throw new IOException("Checkpoint has " + count + " time series instead of " + metrics.size());
+        }
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            Metric metric = metrics.get(name);
+            if (metric == null || in.readInt() != metric.levels.length) {
+                throw new IOException("Checkpoint has other buckets for time series " + name);
+            }
+            for (Level level : metric.levels) {
+                level.readState(in);
+            }
+        }
+    }
+
+    /**
+     * A metric of the time series.
+     */
+    public static final class Metric {
+        private final Level[] levels;
+
+        private Metric(Level[] levels) {
+            this.levels = levels;
+        }
+
+        /**
+         * Record the value of the metric at the given time. Times have to be recorded in order.
+         */
+        public void record(long time, double value) {
+            for (Level level : levels) {
+                level.record(time, value);
+            }
+        }
+    }
+
+    /**
+     * The buckets of a metric at one bucket length, as they are saved with the statistics.
+     * A bucket without values repeats the last value of the bucket before it.
+     */
+    public static final class Rollup implements Serializable {
+        private static final long serialVersionUID = -3302791617209427338L;
+
+        /**
+         * The length of a bucket in ms.
+         */
+        public final long bucketLength;
+        /**
+         * The start of the first bucket in ms.
+         */
+        public final long start;
+        public final double[] min;
+        public final double[] max;
+        public final double[] mean;
+        public final double[] last;
+
+        Rollup(long bucketLength, long start, int buckets) {
+            this.bucketLength = bucketLength;
+            this.start = start;
+            this.min = new double[buckets];
+            this.max = new double[buckets];
+            this.mean = new double[buckets];
+            this.last = new double[buckets];
+        }
+    }
+
+    /**
+     * The buckets of a metric at one bucket length, in primitive arrays that grow up to a capacity and are then used as a ring.
+     */
+    private static final class Level {
+        private final long bucketLength;
+        private final int capacity;
+        private double[] min;
+        private double[] max;
+        private double[] sum;
+        private double[] last;
+        private int[] count;
+        // Index of the newest bucket since the start of the run, or -1 before the first value
+        private long newest;
+
+        Level(long bucketLength, int capacity) {
+            this.bucketLength = bucketLength;
+            this.capacity = capacity;
+            allocate((int) Math.min(capacity, INITIAL_BUCKETS));
+            this.newest = -1;
+        }
+
+        void record(long time, double value) {
+            long bucket = time / bucketLength;
+            while (newest < bucket) {
+                newest++;
+                if (newest >= count.length && count.length < capacity) {
+                    grow();
+                }
+                count[slot(newest)] = 0;
+            }
+            int slot = slot(bucket);
+            if (count[slot] == 0) {
+                min[slot] = value;
+                max[slot] = value;
+                sum[slot] = 0;
+            } else {
+                min[slot] = Math.min(min[slot], value);
+                max[slot] = Math.max(max[slot], value);
+            }
+            sum[slot] += value;
+            last[slot] = value;
+            count[slot]++;
+        }
+
+        private long getFirst() {
+            return Math.max(0, newest - capacity + 1);
+        }
+
+        private int slot(long bucket) {
+            return (int) (bucket % count.length);
+        }
+
+        private void allocate(int buckets) {
+            min = new double[buckets];
+            max = new double[buckets];
+            sum = new double[buckets];
+            last = new double[buckets];
+            count = new int[buckets];
+        }
+
+        // Only a level that is not yet a ring grows, in which case bucket i is in slot i
+        private void grow() {
+            int buckets = (int) Math.min(capacity, 2L * count.length);
+            min = Arrays.copyOf(min, buckets);
+            max = Arrays.copyOf(max, buckets);
+            sum = Arrays.copyOf(sum, buckets);
+            last = Arrays.copyOf(last, buckets);
+            count = Arrays.copyOf(count, buckets);
+        }
+
+        Rollup toRollup() {
+            long first = getFirst();
+            Rollup rollup = new Rollup(bucketLength, first * bucketLength, (int) (newest - first + 1));
+            double previous = 0;
+            for (long bucket = first; bucket <= newest; bucket++) {
+                int slot = slot(bucket);
+                int b = (int) (bucket - first);
+                if (count[slot] == 0) {
+                    rollup.min[b] = rollup.max[b] = rollup.mean[b] = rollup.last[b] = previous;
+                } else {
+                    rollup.min[b] = min[slot];
+                    rollup.max[b] = max[slot];
+                    rollup.mean[b] = sum[slot] / count[slot];
+                    rollup.last[b] = last[slot];
+                    previous = last[slot];
+                }
+            }
+            return rollup;
+        }
+
+        void writeState(DataOutput out) throws IOException {
+            out.writeLong(bucketLength);
+            out.writeLong(newest);
+            for (long bucket = getFirst(); bucket <= newest; bucket++) {
+                int slot = slot(bucket);
+                out.writeDouble(min[slot]);
+                out.writeDouble(max[slot]);
+                out.writeDouble(sum[slot]);
+                out.writeDouble(last[slot]);
+                out.writeInt(count[slot]);
+            }
+        }
+
+        void readState(DataInput in) throws IOException {
+            if (in.readLong() != bucketLength) {
+                throw new IOException("Checkpoint has other bucket lengths");
+            }
+            newest = in.readLong();
+            long first = getFirst();
+            allocate((int) Math.min(capacity, Math.max(INITIAL_BUCKETS, newest + 1)));
+            for (long bucket = first; bucket <= newest; bucket++) {
+                int slot = slot(bucket);
+                min[slot] = in.readDouble();
+                max[slot] = in.readDouble();
+                sum[slot] = in.readDouble();
+                last[slot] = in.readDouble();
+                count[slot] = in.readInt();
+            }
+        }
+    }
+}
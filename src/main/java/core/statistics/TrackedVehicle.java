@@ -0,0 +1,21 @@
+package core.statistics;
+
+import com.github.rinde.rinsim.core.model.road.MovingRoadUser;
+
+/**
+ * A vehicle of which the {@link StatsTracker} keeps the distances in arrays instead of a map.
+ * The tracker gives every vehicle a dense index when it is added, which the vehicle stores so a move needs no lookup.
+ */
+public interface TrackedVehicle extends MovingRoadUser {
+    /**
+     * The index given by {@link #setTrackerIndex(int)}, or -1 if the vehicle is not tracked.
+     */
+    int getTrackerIndex();
+
+    void setTrackerIndex(int index);
+
+    /**
+     * Whether the vehicle carries passengers, so its moves count as loaded distance.
+     */
+    boolean isLoaded();
+}